@@ -0,0 +1,75 @@
+package ca.ubc.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Measures DNSCache reads and updates for caches of different sizes. The single-threaded
+ * benchmarks can be repeated with more threads using the JMH -t option; the "mixed" group runs
+ * three readers against one writer on the same cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private DNSCache cache;
+    private DNSNode[] nodes;
+    private InetAddress[] addresses;
+
+    @Setup
+    public void populateCache() throws UnknownHostException {
+        cache = new DNSCache();
+        nodes = new DNSNode[size];
+        addresses = new InetAddress[size];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+            addresses[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+            cache.addResult(newRecord(i));
+        }
+    }
+
+    // A new record for an existing node, which replaces the cached one (it expires later)
+    private ResourceRecord newRecord(int i) {
+        return new ResourceRecord(nodes[i].getHostName(), RecordType.A, 3600, addresses[i]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getCachedResults() {
+        return cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getValidResults() {
+        return cache.getValidResults(nodes[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public void addResult() {
+        cache.addResult(newRecord(ThreadLocalRandom.current().nextInt(size)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Set<ResourceRecord> mixedRead() {
+        return cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrite() {
+        cache.addResult(newRecord(ThreadLocalRandom.current().nextInt(size)));
+    }
+}
@@ -0,0 +1,45 @@
+package ca.ubc.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Measures the cost of a lookup that is fully answered by the cache, from the lookup entry point
+ * (fast lane) and from the cache read used by the iterative resolution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheHitBenchmark {
+
+    private final DNSNode node = new DNSNode("www.cs.ubc.ca", RecordType.A);
+
+    @Setup
+    public void populateCache() throws UnknownHostException {
+        DNSCache cache = DNSCache.getInstance();
+        for (int i = 1; i <= 4; i++)
+            cache.addResult(new ResourceRecord(node.getHostName(), RecordType.A, 3600,
+                    InetAddress.getByAddress(new byte[]{(byte) 142, 103, 6, (byte) i})));
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> lookupHit() {
+        return DNSLookupService.getResults(node, 0);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> validResults() {
+        return DNSCache.getInstance().getValidResults(node);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> cachedResults() {
+        return DNSCache.getInstance().getCachedResults(node);
+    }
+}
@@ -0,0 +1,50 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** DNS responses used by the decoding benchmarks, in the form they were received from the
+ * servers. Both use name compression heavily: owner names, NS and CNAME targets point into the
+ * question and into previous records, sometimes through several levels of pointers.
+ */
+public class CapturedResponses {
+
+    /** Referral from a root server for www.cs.ubc.ca (A), transaction ID 0x1234: four NS records
+     * for ca with A and AAAA glue for each of them.
+     */
+    public static final String REFERRAL =
+            "12348000000100000004000803777777026373037562630263610000010001c0" +
+            "17000200010002a300001103616e790a63612d73657276657273c017c0170002" +
+            "00010002a3000004016ac02fc017000200010002a30000040178c02fc0170002" +
+            "00010002a30000040163c02fc02b000100010002a3000004c7049002c0480001" +
+            "00010002a3000004c6b6a701c058000100010002a3000004c7fdfa44c0680001" +
+            "00010002a3000004b99fc402c02b001c00010002a30000102001050000a70000" +
+            "0000000000000002c048001c00010002a3000010200105000083000000000000" +
+            "00000001c058001c00010002a30000102620010a80aa00000000000000000068" +
+            "c068001c00010002a30000102620010a805300000000000000000002";
+    public static final int REFERRAL_ID = 0x1234;
+
+    /** Authoritative answer for prep.ai.mit.edu (A), transaction ID 0x4321: a chain of two CNAME
+     * records followed by two A records, with NS records and glue for gnu.org.
+     */
+    public static final String CNAME_ANSWER =
+            "4321840000010004000300030470726570026169036d69740365647500000100" +
+            "01c00c0005000100000e10000d0366747003676e75036f726700c02d00050001" +
+            "0000012c00120366747003676e75036f72670363646ec031c046000100010000" +
+            "012c0004d133bc14c046000100010000012c0004d133bc15c031000200010001" +
+            "51800006036e7331c031c03100020001000151800006036e7332c031c0310002" +
+            "0001000151800006036e7333c031c08400010001000151800004d133bcb9c096" +
+            "00010001000151800004d0461f7dc0a8000100010001518000042d211572";
+    public static final int CNAME_ANSWER_ID = 0x4321;
+
+    /** Returns a response in a buffer of the same size used by DNSQueryHandler to receive it.
+     *
+     * @param hex Hexadecimal representation of the response.
+     * @return A buffer containing the response, padded with zeros.
+     */
+    public static ByteBuffer toBuffer(String hex) {
+        byte[] response = new byte[1024];
+        for (int i = 0; i < hex.length() / 2; i++)
+            response[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return ByteBuffer.wrap(response);
+    }
+}
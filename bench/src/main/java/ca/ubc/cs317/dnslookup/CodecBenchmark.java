@@ -0,0 +1,58 @@
+package ca.ubc.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Measures query encoding and response decoding, without any I/O. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private final DNSNode query = new DNSNode("subdomain.example.com", RecordType.AAAA);
+    private ByteBuffer referral;
+    private ByteBuffer cnameAnswer;
+    private List<Byte> labels;
+
+    @Setup
+    public void loadResponses() {
+        referral = CapturedResponses.toBuffer(CapturedResponses.REFERRAL);
+        cnameAnswer = CapturedResponses.toBuffer(CapturedResponses.CNAME_ANSWER);
+
+        labels = new ArrayList<>();
+        for (String label : "www.cs.ubc.ca".split("\\.")) {
+            labels.add((byte) label.length());
+            for (char c : label.toCharArray())
+                labels.add((byte) c);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeQuery() throws IOException {
+        return DNSQueryHandler.encodeQuery((short) 0x1234, query);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeReferral() throws IOException {
+        return DNSQueryHandler.decodeResponse(CapturedResponses.REFERRAL_ID, referral);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeCnameAnswer() throws IOException {
+        return DNSQueryHandler.decodeResponse(CapturedResponses.CNAME_ANSWER_ID, cnameAnswer);
+    }
+
+    @Benchmark
+    public String convertBytesToFQDN() {
+        return DNSQueryHandler.convertBytesToFDQN(labels);
+    }
+}
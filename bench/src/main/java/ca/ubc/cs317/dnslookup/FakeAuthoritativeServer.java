@@ -0,0 +1,83 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/** A minimal authoritative DNS server on the loopback interface, used to measure resolution
+ * without any network. It answers every A query authoritatively with the same address and TTL;
+ * queries for other types get an authoritative answer with no records.
+ */
+public class FakeAuthoritativeServer implements Closeable {
+
+    private final DatagramSocket socket;
+    private final Inet4Address answer;
+    private final int ttl;
+    private final Thread thread;
+
+    /** Starts a server on an ephemeral port of 127.0.0.1.
+     *
+     * @param answer Address returned for every A query.
+     * @param ttl    TTL of the answers, in seconds. A TTL of zero keeps answers out of the cache.
+     * @throws IOException if the socket could not be opened.
+     */
+    public FakeAuthoritativeServer(Inet4Address answer, int ttl) throws IOException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.answer = answer;
+        this.ttl = ttl;
+        this.thread = new Thread(this::serve, "fake-authoritative");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void serve() {
+        byte[] query = new byte[512];
+        ByteBuffer response = ByteBuffer.allocate(512);
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(query, query.length);
+                socket.receive(packet);
+
+                // Skip the header and question name
+                int end = 12;
+                while (end < packet.getLength() && query[end] != 0)
+                    end += (query[end] & 0xFF) + 1;
+                int qtype = ((query[end + 1] & 0xFF) << 8) | (query[end + 2] & 0xFF);
+                boolean isA = qtype == RecordType.A.getCode();
+
+                response.clear();
+                response.put(query, 0, 2);                  // ID
+                response.putShort((short) 0x8400);          // QR, AA
+                response.putShort((short) 1);               // QDCOUNT
+                response.putShort((short) (isA ? 1 : 0));   // ANCOUNT
+                response.putInt(0);                         // NSCOUNT, ARCOUNT
+                response.put(query, 12, end + 5 - 12);      // QUESTION
+                if (isA) {
+                    response.putShort((short) 0xC00C);      // pointer to the question name
+                    response.putShort((short) RecordType.A.getCode());
+                    response.putShort((short) 1);
+                    response.putInt(ttl);
+                    response.putShort((short) 4);
+                    response.put(answer.getAddress());
+                }
+                socket.send(new DatagramPacket(response.array(), response.position(), packet.getSocketAddress()));
+            } catch (IOException | RuntimeException e) {
+                // Closed, or a malformed query: ignore it
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,407 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A deterministic DNS hierarchy (root, TLD and leaf zones) served by fake authoritative servers
+ * on loopback addresses, so resolution can be tested and measured without any network. Zones are
+ * loaded from zone file fixtures listed in a manifest, with one line per zone:
+ * <pre>
+ *     zone    server-address    zone-file
+ * </pre>
+ * Every server listens on its own loopback address (e.g., 127.0.0.2) and on the same port, so the
+ * glue in the fixtures can use the server addresses directly. Servers answer like authoritative
+ * servers: referrals at zone cuts, answers (following CNAMEs within the zone and expanding
+ * wildcards), NODATA and NXDOMAIN. Latency, packet loss, truncation and glue-less delegations can
+ * be injected.
+ */
+public class FakeDNSHierarchy implements Closeable {
+
+    private static final int SOA = 6;
+    private static final int MAX_BIND_ATTEMPTS = 10;
+
+    private final Map<InetAddress, List<Zone>> zonesByServer = new LinkedHashMap<>();
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final ScheduledExecutorService delayedResponses = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-dns-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder queriesReceived = new LongAdder();
+    private InetAddress rootAddress;
+    private int port;
+
+    private volatile int latency = 0;
+    private volatile double lossRate = 0;
+    private volatile double truncationRate = 0;
+    private volatile boolean glueless = false;
+
+    /** Loads the zones listed in a manifest and starts their servers. The manifest and zone files
+     * are loaded from the class path.
+     *
+     * @param manifest Class path resource of the manifest (e.g., "/zones/hierarchy.conf").
+     * @return The running hierarchy.
+     * @throws IOException if a fixture could not be read or a server could not be started.
+     */
+    public static FakeDNSHierarchy start(String manifest) throws IOException {
+        FakeDNSHierarchy hierarchy = new FakeDNSHierarchy();
+        String directory = manifest.substring(0, manifest.lastIndexOf('/') + 1);
+        try (BufferedReader lines = open(manifest)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                line = line.split("#", 2)[0].trim();
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\\s+");
+                String apex = fields[0].equals(".") ? "" : fields[0].toLowerCase().replaceAll("\\.$", "");
+                InetAddress server = InetAddress.getByName(fields[1]);
+                Zone zone = new Zone(apex);
+                try (BufferedReader zoneFile = open(directory + fields[2])) {
+                    ZoneFileReader.read(zoneFile, apex, zone::add);
+                }
+                hierarchy.zonesByServer.computeIfAbsent(server, s -> new ArrayList<>()).add(zone);
+                if (apex.isEmpty()) hierarchy.rootAddress = server;
+            }
+        }
+        if (hierarchy.rootAddress == null)
+            throw new IOException("The manifest does not have a root zone");
+        hierarchy.bindServers();
+        return hierarchy;
+    }
+
+    private static BufferedReader open(String resource) throws IOException {
+        InputStream in = FakeDNSHierarchy.class.getResourceAsStream(resource);
+        if (in == null) throw new FileNotFoundException(resource);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    }
+
+    // Binds all server addresses on the same (ephemeral) port
+    private void bindServers() throws IOException {
+        for (int attempt = 0; sockets.isEmpty(); attempt++) {
+            try {
+                // The first socket picks the port, which must then be free on all other addresses
+                for (InetAddress server : zonesByServer.keySet()) {
+                    DatagramSocket socket = new DatagramSocket(new InetSocketAddress(server, sockets.isEmpty() ? 0 : port));
+                    if (sockets.isEmpty()) port = socket.getLocalPort();
+                    sockets.add(socket);
+                }
+            } catch (BindException e) {
+                sockets.forEach(DatagramSocket::close);
+                sockets.clear();
+                if (attempt == MAX_BIND_ATTEMPTS) throw e;
+            }
+        }
+        for (DatagramSocket socket : sockets) {
+            Thread thread = new Thread(() -> serve(socket), "fake-dns-" + socket.getLocalAddress().getHostAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public InetAddress getRootAddress() {
+        return rootAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getQueriesReceived() {
+        return queriesReceived.sum();
+    }
+
+    /** Delays every response.
+     *
+     * @param millis Delay in milliseconds, or 0 to respond immediately.
+     */
+    public void setLatency(int millis) {
+        latency = millis;
+    }
+
+    /** Drops a fraction of the queries received, without responding.
+     *
+     * @param rate Probability (0 to 1) of dropping a query.
+     */
+    public void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    /** Responds to a fraction of the queries with an empty truncated (TC) response.
+     *
+     * @param rate Probability (0 to 1) of truncating a response.
+     */
+    public void setTruncationRate(double rate) {
+        truncationRate = rate;
+    }
+
+    /** Omits glue addresses from referrals, so the resolver must resolve name servers itself.
+     * Only glue for name servers outside the delegated zone is omitted, since the delegation could
+     * not be followed without the rest.
+     *
+     * @param glueless true to omit glue, false to include it.
+     */
+    public void setGlueless(boolean glueless) {
+        this.glueless = glueless;
+    }
+
+    private void serve(DatagramSocket socket) {
+        List<Zone> zones = zonesByServer.get(socket.getLocalAddress());
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queriesReceived.increment();
+                if (ThreadLocalRandom.current().nextDouble() < lossRate) continue;
+
+                byte[] response = respond(zones, Arrays.copyOf(buffer, packet.getLength()));
+                DatagramPacket responsePacket = new DatagramPacket(response, response.length, packet.getSocketAddress());
+                if (latency > 0)
+                    delayedResponses.schedule(() -> send(socket, responsePacket), latency, TimeUnit.MILLISECONDS);
+                else
+                    send(socket, responsePacket);
+            } catch (IOException | RuntimeException e) {
+                // Closed, or a malformed query: ignore it
+            }
+        }
+    }
+
+    private static void send(DatagramSocket socket, DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException ignored) {}
+    }
+
+    private byte[] respond(List<Zone> zones, byte[] query) {
+        ByteBuffer in = ByteBuffer.wrap(query);
+        short id = in.getShort();
+        in.position(12);
+        StringBuilder name = new StringBuilder();
+        for (int length = in.get() & 0xFF; length != 0; length = in.get() & 0xFF) {
+            if (name.length() > 0) name.append('.');
+            byte[] label = new byte[length];
+            in.get(label);
+            name.append(new String(label, StandardCharsets.US_ASCII).toLowerCase());
+        }
+        String qname = name.toString();
+        int qtype = in.getShort() & 0xFFFF;
+
+        Message message = new Message(id, qname, qtype);
+        if (ThreadLocalRandom.current().nextDouble() < truncationRate) {
+            message.truncated = true;
+            return message.encode();
+        }
+
+        Zone zone = null;
+        for (Zone candidate : zones)
+            if (isInZone(qname, candidate.apex) && (zone == null || candidate.apex.length() > zone.apex.length()))
+                zone = candidate;
+        if (zone == null) {
+            message.rcode = 5; // REFUSED
+            return message.encode();
+        }
+        zone.answer(message, glueless);
+        return message.encode();
+    }
+
+    // @return true if name is equal to zone or is a subdomain of it
+    private static boolean isInZone(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    @Override
+    public void close() {
+        sockets.forEach(DatagramSocket::close);
+        delayedResponses.shutdownNow();
+    }
+
+    /** A record of a fixture zone. */
+    private static class ZoneRecord {
+        private final String owner;
+        private final long ttl;
+        private final int type;
+        private final String data;
+
+        private ZoneRecord(String owner, long ttl, int type, String data) {
+            this.owner = owner;
+            this.ttl = ttl;
+            this.type = type;
+            this.data = data;
+        }
+
+        private ZoneRecord withOwner(String owner) {
+            return new ZoneRecord(owner, ttl, type, data);
+        }
+    }
+
+    /** The data of one zone, indexed by owner name. */
+    private static class Zone {
+        private final String apex;
+        private final Map<String, List<ZoneRecord>> records = new HashMap<>();
+
+        private Zone(String apex) {
+            this.apex = apex;
+        }
+
+        private void add(String owner, long ttl, RecordType type, int typeCode, String data) {
+            records.computeIfAbsent(owner, o -> new ArrayList<>()).add(new ZoneRecord(owner, ttl, typeCode, data));
+        }
+
+        private List<ZoneRecord> get(String owner, int type) {
+            List<ZoneRecord> matching = new ArrayList<>();
+            for (ZoneRecord record : records.getOrDefault(owner, Collections.emptyList()))
+                if (record.type == type) matching.add(record);
+            return matching;
+        }
+
+        // @return the records of the closest wildcard matching name, with name as owner, or null
+        private List<ZoneRecord> expandWildcard(String name) {
+            for (String encloser = parent(name); ; encloser = parent(encloser)) {
+                List<ZoneRecord> wildcard = records.get(encloser.isEmpty() ? "*" : "*." + encloser);
+                if (wildcard != null) {
+                    List<ZoneRecord> expanded = new ArrayList<>();
+                    for (ZoneRecord record : wildcard) expanded.add(record.withOwner(name));
+                    return expanded;
+                }
+                if (encloser.equals(apex) || encloser.isEmpty()) return null;
+            }
+        }
+
+        private void answer(Message message, boolean glueless) {
+            String qname = message.qname;
+
+            // Referral if the name is at or below a zone cut (the highest one below the apex)
+            List<String> ancestors = new ArrayList<>();
+            for (String name = qname; !name.equals(apex); name = parent(name))
+                ancestors.add(0, name);
+            for (String name : ancestors) {
+                List<ZoneRecord> delegation = get(name, RecordType.NS.getCode());
+                if (!delegation.isEmpty()) {
+                    message.authority.addAll(delegation);
+                    for (ZoneRecord ns : delegation) {
+                        // Glue inside the delegated zone is required, and is never omitted
+                        if (glueless && !isInZone(ns.data, name)) continue;
+                        message.additional.addAll(get(ns.data, RecordType.A.getCode()));
+                        message.additional.addAll(get(ns.data, RecordType.AAAA.getCode()));
+                    }
+                    return;
+                }
+            }
+
+            message.authoritative = true;
+            String name = qname;
+            for (int hops = 0; hops < 8; hops++) {
+                List<ZoneRecord> owned = records.get(name);
+                if (owned == null)
+                    owned = expandWildcard(name);
+                if (owned == null) {
+                    if (message.answers.isEmpty()) message.rcode = 3; // NXDOMAIN
+                    message.authority.addAll(get(apex, SOA));
+                    return;
+                }
+
+                boolean found = false;
+                ZoneRecord alias = null;
+                for (ZoneRecord record : owned) {
+                    if (record.type == message.qtype) {
+                        message.answers.add(record);
+                        found = true;
+                    } else if (record.type == RecordType.CNAME.getCode()) {
+                        alias = record;
+                    }
+                }
+                if (found) return;
+                if (alias == null) {
+                    message.authority.addAll(get(apex, SOA)); // NODATA
+                    return;
+                }
+                message.answers.add(alias);
+                if (!isInZone(alias.data, apex)) return;
+                name = alias.data;
+            }
+        }
+    }
+
+    /** A response being built, encoded without name compression. */
+    private static class Message {
+        private final short id;
+        private final String qname;
+        private final int qtype;
+        private boolean authoritative;
+        private boolean truncated;
+        private int rcode;
+        private final List<ZoneRecord> answers = new ArrayList<>();
+        private final List<ZoneRecord> authority = new ArrayList<>();
+        private final List<ZoneRecord> additional = new ArrayList<>();
+
+        private Message(short id, String qname, int qtype) {
+            this.id = id;
+            this.qname = qname;
+            this.qtype = qtype;
+        }
+
+        private byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(id);
+                out.writeShort(0x8000 | (authoritative ? 0x0400 : 0) | (truncated ? 0x0200 : 0) | rcode);
+                out.writeShort(1);
+                out.writeShort(answers.size());
+                out.writeShort(authority.size());
+                out.writeShort(additional.size());
+                writeName(out, qname);
+                out.writeShort(qtype);
+                out.writeShort(1);
+                for (List<ZoneRecord> section : Arrays.asList(answers, authority, additional))
+                    for (ZoneRecord record : section)
+                        writeRecord(out, record);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeRecord(DataOutputStream out, ZoneRecord record) throws IOException {
+            ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(rdata);
+            if (record.type == RecordType.A.getCode() || record.type == RecordType.AAAA.getCode()) {
+                data.write(InetAddress.getByName(record.data).getAddress());
+            } else if (record.type == SOA) {
+                String[] fields = record.data.split("\\s+");
+                writeName(data, fields[0].replaceAll("\\.$", ""));
+                writeName(data, fields[1].replaceAll("\\.$", ""));
+                for (int i = 2; i < 7; i++)
+                    data.writeInt((int) ZoneFileReader.parseTtl(fields[i]));
+            } else {
+                writeName(data, record.data);
+            }
+
+            writeName(out, record.owner);
+            out.writeShort(record.type);
+            out.writeShort(1);
+            out.writeInt((int) record.ttl);
+            out.writeShort(rdata.size());
+            rdata.writeTo(out);
+        }
+
+        private static void writeName(DataOutputStream out, String name) throws IOException {
+            if (!name.isEmpty()) {
+                for (String label : name.split("\\.")) {
+                    out.writeByte(label.length());
+                    out.writeBytes(label);
+                }
+            }
+            out.writeByte(0);
+        }
+    }
+}
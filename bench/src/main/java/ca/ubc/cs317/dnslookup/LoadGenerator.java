@@ -0,0 +1,168 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Drives the resolver with lookups at a fixed rate against the fake DNS hierarchy, and reports
+ * the throughput and latency percentiles obtained. Names are drawn from a pool following a Zipf
+ * distribution, so popular names are mostly answered from the cache, as in real traffic. Lookups
+ * are scheduled open-loop (latency is measured from the time a lookup was due, not from the time
+ * it started), so a slow resolver cannot hide its queueing delay. A fraction of the lookups may be
+ * sent as batch lookups, whose latency is reported separately from the interactive ones. With
+ * --reverse, lookups are PTR lookups for addresses spread over a few /24 networks instead.
+ * <p>
+ * Several generators can share their caches (see DNSPeerCache): start each one with --peer-port
+ * and list the ports of the others with --peers, e.g. "--peer-port 5301 --peers 127.0.0.1:5302".
+ * Each generator has its own fake hierarchy, so the upstream queries reported are its own.
+ * <p>
+ * Usage: LoadGenerator [--qps N] [--duration S] [--names N] [--zipf S] [--domain D]
+ * [--threads N] [--latency MS] [--loss P] [--truncation P] [--glueless] [--inflight N]
+ * [--rate R] [--batch P] [--budget MS] [--reverse] [--peer-port P] [--peers HOST:PORT,...]
+ */
+public class LoadGenerator {
+
+    private static final byte[][] REVERSE_NETWORKS = {
+            {(byte) 192, 0, 2, 0}, {(byte) 198, 51, 100, 0}, {(byte) 203, 0, 113, 0}};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Invalid option " + args[i]);
+            String option = args[i].substring(2);
+            options.put(option, option.equals("glueless") || option.equals("reverse") ? "true" : args[++i]);
+        }
+        int qps = Integer.parseInt(options.getOrDefault("qps", "1000"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int names = Integer.parseInt(options.getOrDefault("names", "10000"));
+        double zipf = Double.parseDouble(options.getOrDefault("zipf", "1.0"));
+        String domain = options.containsKey("reverse") ? null : options.getOrDefault("domain", "example.test");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        double batch = Double.parseDouble(options.getOrDefault("batch", "0"));
+        long budget = Long.parseLong(options.getOrDefault("budget", String.valueOf(DNSResolution.DEFAULT_BUDGET)));
+
+        try (FakeDNSHierarchy hierarchy = FakeDNSHierarchy.start("/zones/hierarchy.conf")) {
+            hierarchy.setLatency(Integer.parseInt(options.getOrDefault("latency", "0")));
+            hierarchy.setLossRate(Double.parseDouble(options.getOrDefault("loss", "0")));
+            hierarchy.setTruncationRate(Double.parseDouble(options.getOrDefault("truncation", "0")));
+            hierarchy.setGlueless(options.containsKey("glueless"));
+            if (options.containsKey("inflight"))
+                DNSQueryScheduler.getInstance().setMaxInFlight(Integer.parseInt(options.get("inflight")));
+            if (options.containsKey("rate"))
+                DNSQueryScheduler.getInstance().setRateLimit(Double.parseDouble(options.get("rate")));
+            if (options.containsKey("peer-port")) {
+                DNSPeerCache peerCache = DNSPeerCache.getInstance();
+                peerCache.start(InetAddress.getLoopbackAddress(), Integer.parseInt(options.get("peer-port")));
+                for (String peer : options.getOrDefault("peers", "").split(","))
+                    if (!peer.isEmpty()) peerCache.addPeer(DNSLookupService.parsePeer(peer));
+            }
+            DNSQueryHandler.setServerPort(hierarchy.getPort());
+            DNSLookupService.setRootServer(hierarchy.getRootAddress());
+
+            System.out.printf("Driving %d lookups/s for %d s over %d names in %s (Zipf s=%.2f)%n",
+                    qps, duration, names, domain == null ? "reverse zones" : domain, zipf);
+            Result result = run(qps, duration, new ZipfDistribution(names, zipf), domain, threads, batch, budget);
+
+            System.out.printf("Completed  %d lookups in %.1f s (%.0f lookups/s), %d failed, %d not started%n",
+                    result.completed, result.seconds, result.completed / result.seconds,
+                    result.failed, result.skipped);
+            System.out.println("Latency    " + result.latency);
+            if (batch > 0)
+                System.out.println("  batch    " + result.batchLatency);
+            System.out.printf("Upstream   %d queries received by the fake servers%n", hierarchy.getQueriesReceived());
+            DNSMetrics.getInstance().dump(System.out);
+        }
+    }
+
+    private static Result run(int qps, int duration, ZipfDistribution distribution, String domain,
+                              int threads, double batch, long budget) throws InterruptedException {
+        // Batch lookups have their own workers, so they cannot hold up interactive ones
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService batchWorkers = Executors.newFixedThreadPool(threads);
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram batchLatency = new LatencyHistogram();
+        LongAdder completed = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long total = (long) qps * duration;
+        long interval = 1000000000L / qps;
+        long start = System.nanoTime();
+
+        for (long i = 0; i < total; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            DNSNode node = domain == null ? reverseNode(distribution.next()) :
+                    new DNSNode("host" + distribution.next() + "." + domain, RecordType.A);
+            boolean background = ThreadLocalRandom.current().nextDouble() < batch;
+            (background ? batchWorkers : workers).execute(() -> {
+                DNSResolution.Priority priority = background ?
+                        DNSResolution.Priority.BATCH : DNSResolution.Priority.INTERACTIVE;
+                if (DNSLookupService.getResults(node, priority, budget).isEmpty())
+                    failed.increment();
+                (background ? batchLatency : latency).record(System.nanoTime() - due);
+                completed.increment();
+            });
+        }
+        workers.shutdown();
+        batchWorkers.shutdown();
+        long skipped = 0;
+        if (!workers.awaitTermination(30, TimeUnit.SECONDS))
+            skipped += workers.shutdownNow().size();
+        if (!batchWorkers.awaitTermination(30, TimeUnit.SECONDS))
+            skipped += batchWorkers.shutdownNow().size();
+
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.completed = completed.sum();
+        result.failed = failed.sum();
+        result.skipped = skipped;
+        result.latency = latency;
+        result.batchLatency = batchLatency;
+        return result;
+    }
+
+    // @return the PTR lookup for the address of a given rank, in one of the reverse zones of the
+    // fake hierarchy
+    private static DNSNode reverseNode(int rank) {
+        byte[] address = REVERSE_NETWORKS[(rank / 256) % REVERSE_NETWORKS.length].clone();
+        address[3] = (byte) rank;
+        try {
+            return new DNSNode(ReverseLookup.reverseName(InetAddress.getByAddress(address)), RecordType.PTR);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Result {
+        private double seconds;
+        private long completed;
+        private long failed;
+        private long skipped;
+        private LatencyHistogram latency;
+        private LatencyHistogram batchLatency;
+    }
+
+    /** Draws ranks from 1 to N, where rank k is drawn with a probability proportional to 1/k^s. */
+    static class ZipfDistribution {
+        private final double[] cumulative;
+
+        ZipfDistribution(int size, double exponent) {
+            cumulative = new double[size];
+            double sum = 0;
+            for (int k = 1; k <= size; k++) {
+                sum += 1 / Math.pow(k, exponent);
+                cumulative[k - 1] = sum;
+            }
+            for (int k = 0; k < size; k++)
+                cumulative[k] /= sum;
+        }
+
+        int next() {
+            int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+            return (index < 0 ? -index - 1 : index) + 1;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ca.ubc.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Measures a complete uncached resolution (encoding, UDP round trip on the loopback interface,
+ * decoding and caching) against a local fake authoritative server. Answers have a TTL of zero, so
+ * every invocation goes to the server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolutionBenchmark {
+
+    private final DNSNode node = new DNSNode("www.example.com", RecordType.A);
+    private FakeAuthoritativeServer server;
+
+    @Setup
+    public void startServer() throws IOException {
+        server = new FakeAuthoritativeServer(
+                (Inet4Address) InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1}), 0);
+        DNSQueryHandler.setServerPort(server.getPort());
+        DNSLookupService.setRootServer(server.getAddress());
+    }
+
+    @TearDown
+    public void stopServer() {
+        server.close();
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> resolveUncached() {
+        return DNSLookupService.getResults(node, 0);
+    }
+}
@@ -1,22 +1,36 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.BiConsumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
- * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * to the set of resource records (results) cached for them. Cached results are only maintained
+ * for the duration of the TTL (time-to-live) returned by the server, and are never returned to
+ * the user once expired. The cache may be read and updated concurrently by parallel lookups.
+ * <p>
+ * The records of each node are kept in an immutable snapshot (RRSet), which also holds the
+ * earliest and latest expiration times of its records. Updates replace the snapshot of a node
+ * atomically, so a read gets a consistent set of records from a single lookup in the map, and
+ * only has to look at the records themselves once some of them have expired.
  */
 public class DNSCache {
 
     private static DNSCache instance = new DNSCache();
+    private static DNSMetrics metrics = DNSMetrics.getInstance();
 
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private Map<DNSNode, RRSet> cachedResults = new ConcurrentSkipListMap<>();
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+    /** Creates an empty cache. The application only uses the single instance returned by
+     * getInstance; separate instances are only created by benchmarks, so they start empty and do
+     * not share records with the resolver.
+     */
+    DNSCache() {
+    }
+
+    /** Singleton retrieval method. Only one instance of the DNS cache is used by the application.
+     * This method returns the single DNS cache instance.
      *
      * @return Instance of a DNS cache.
      */
@@ -26,19 +40,44 @@ public class DNSCache {
 
     /** Returns a set of resource records already cached for a particular query. If no results
      * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * from the cache before being returned (see getValidResults). This method does not perform
+     * the query itself, it only returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
-     * @return A potentially empty set of resources associated to the query.
+     * @return A potentially empty, unmodifiable set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        return getValidResults(node);
+    }
+
+    /** Returns the records cached for a particular query that are still valid. This method is
+     * meant for the cache hit path: if every cached record is still valid, the cached snapshot
+     * itself is returned, without any copy. Once some records have expired, the snapshot is
+     * replaced by one without them (or removed if none is left), unless it was updated meanwhile,
+     * so the records are only scanned once.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty, unmodifiable set of valid resource records associated to the
+     * query.
+     */
+    public Set<ResourceRecord> getValidResults(DNSNode node) {
+        RRSet results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        long now = System.currentTimeMillis();
+        if (results.minExpiration <= now) {
+            RRSet valid = results.validAt(now);
+            if (valid == null) {
+                // Only this snapshot is removed or replaced, one installed meanwhile is newer
+                if (cachedResults.remove(node, results))
+                    metrics.recordCacheExpiry();
+                return Collections.emptySet();
+            }
+            cachedResults.replace(node, results, valid);
+            results = valid;
+        }
+        return results.records;
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -52,15 +91,8 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
-        }
-
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+        cachedResults.compute(record.getNode(), (node, results) ->
+                results == null ? new RRSet(Collections.singleton(record)) : results.with(record));
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
@@ -70,10 +102,10 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : cachedResults.keySet()) {
+            Set<ResourceRecord> results = getCachedResults(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
         }
     }
 
@@ -84,10 +116,52 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
+        forEachNode((node, results) -> results.forEach(record -> consumer.accept(node, record)));
     }
 
-}
\ No newline at end of file
+    /** An immutable snapshot of the records cached for a node, with the earliest and latest
+     * expiration times of the records, computed once when the snapshot is built.
+     */
+    private static class RRSet {
+        private final Set<ResourceRecord> records;
+        private final long minExpiration;
+        private final long maxExpiration;
+
+        private RRSet(Set<ResourceRecord> records) {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (ResourceRecord record : records) {
+                min = Math.min(min, record.getExpirationTime());
+                max = Math.max(max, record.getExpirationTime());
+            }
+            this.records = Collections.unmodifiableSet(records);
+            this.minExpiration = min;
+            this.maxExpiration = max;
+        }
+
+        // @return a snapshot with the records still valid at a given time, or null if there are none
+        private RRSet validAt(long now) {
+            if (maxExpiration <= now)
+                return null;
+            Set<ResourceRecord> valid = new HashSet<>();
+            for (ResourceRecord record : records)
+                if (record.getExpirationTime() > now) valid.add(record);
+            return new RRSet(valid);
+        }
+
+        // @return a snapshot with a record added, or this snapshot if it has an equivalent record
+        // expiring no earlier. Expired records are dropped from the new snapshot.
+        private RRSet with(ResourceRecord record) {
+            long now = System.currentTimeMillis();
+            Set<ResourceRecord> updated = new HashSet<>(records.size() * 2 + 2);
+            for (ResourceRecord existing : records) {
+                if (existing.equals(record) && !existing.expiresBefore(record))
+                    return this;
+                // Equivalent records are skipped, otherwise the set keeps the old one
+                if (existing.getExpirationTime() > now && !existing.equals(record))
+                    updated.add(existing);
+            }
+            updated.add(record);
+            return new RRSet(updated);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** This class keeps local copies of DNS zones (typically the root zone, as described in RFC 8806)
+ * and answers queries for them the way their authoritative servers would, without sending any
+ * query: names below a delegation get a referral (NS records and glue addresses), other names
+ * get their records. Zones are loaded from zone files, and reloaded periodically so the copies
+ * stay current. A reloaded zone replaces the previous copy atomically, so queries answered during
+ * a reload see either the old or the new copy.
+ * <p>
+ * Only the record types needed for resolution are kept (A, AAAA, NS, CNAME and PTR; DNSSEC
+ * records, for instance, are skipped), in flat arrays indexed by owner name, so even the full
+ * root zone only takes a small amount of memory.
+ */
+public class DNSLocalZones {
+
+    private static DNSLocalZones instance = new DNSLocalZones();
+
+    private static final long DEFAULT_REFRESH_INTERVAL = 3600; // seconds
+
+    private volatile Map<String, Zone> zones = Collections.emptyMap();
+    private final Map<String, String> sources = new LinkedHashMap<>();
+    private ScheduledExecutorService refresher;
+    private ScheduledFuture<?> refresh;
+    private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    /** Singleton retrieval method. Only one instance of the local zones can be created. This
+     * method returns the single local zones instance.
+     *
+     * @return Instance of the local zones.
+     */
+    public static DNSLocalZones getInstance() {
+        return instance;
+    }
+
+    /** Loads a zone from a zone file, replacing any copy of the same zone, and reloads it
+     * periodically from then on.
+     *
+     * @param file   Path of the zone file.
+     * @param origin Name of the zone (the empty string for the root zone).
+     * @return Number of records kept from the file.
+     * @throws IOException if the file could not be read or is invalid. Any previous copy of the
+     *                     zone is kept in that case.
+     */
+    public synchronized int load(String file, String origin) throws IOException {
+        Zone zone = read(file, origin);
+        publish(zone);
+        sources.put(zone.apex, file);
+        if (refresh == null)
+            scheduleRefresh();
+        return zone.size;
+    }
+
+    /** Stops answering for a zone.
+     *
+     * @param origin Name of the zone.
+     */
+    public synchronized void unload(String origin) {
+        String apex = normalize(origin);
+        sources.remove(apex);
+        Map<String, Zone> updated = new HashMap<>(zones);
+        updated.remove(apex);
+        zones = updated;
+    }
+
+    /** Sets how often the zones are reloaded from their files.
+     *
+     * @param seconds Interval between reloads, in seconds.
+     */
+    public synchronized void setRefreshInterval(long seconds) {
+        refreshInterval = Math.max(1, seconds);
+        if (refresh != null) {
+            refresh.cancel(false);
+            scheduleRefresh();
+        }
+    }
+
+    public synchronized long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /** Reloads all zones from their files. A zone that cannot be reloaded keeps its current copy.
+     */
+    public synchronized void refresh() {
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            try {
+                publish(read(source.getValue(), source.getKey()));
+            } catch (IOException e) {
+                System.err.println("Could not reload zone " + displayName(source.getKey()) + " (" +
+                        e.getMessage() + ").");
+            }
+        }
+    }
+
+    /** Checks if a zone is held locally.
+     *
+     * @param name Name of the zone, in the form used by the application (the root zone is the
+     *             empty string).
+     * @return true if queries for the zone can be answered locally.
+     */
+    public boolean contains(String name) {
+        Map<String, Zone> current = zones;
+        return !current.isEmpty() && current.containsKey(name.toLowerCase());
+    }
+
+    /** Answers a query from the closest enclosing zone held locally, as its authoritative servers
+     * would. Records are created when the query is answered, so their TTL starts then.
+     *
+     * @param node Host name and record type of the query.
+     * @return For a name below a delegation of the zone, the NS records of the delegation and the
+     * addresses of its name servers found in the zone. Otherwise the records of the requested type
+     * (or the CNAME record) for the name. An empty set if the zone has no such records, or if no
+     * enclosing zone is held locally.
+     */
+    public Set<ResourceRecord> query(DNSNode node) {
+        String hostName = node.getHostName().toLowerCase();
+        Map<String, Zone> current = zones;
+        for (String name = hostName; ; name = parent(name)) {
+            Zone zone = current.get(name);
+            if (zone != null)
+                return zone.query(hostName, node.getType());
+            if (name.isEmpty())
+                return Collections.emptySet();
+        }
+    }
+
+    /** Prints the zones held locally, with their number of records and source file.
+     *
+     * @param out Stream the zones are printed on.
+     */
+    public synchronized void dump(PrintStream out) {
+        for (Zone zone : zones.values())
+            out.format("%-20s %8d records  %s%n", displayName(zone.apex), zone.size, sources.get(zone.apex));
+    }
+
+    private void publish(Zone zone) {
+        Map<String, Zone> updated = new HashMap<>(zones);
+        updated.put(zone.apex, zone);
+        zones = updated;
+    }
+
+    private void scheduleRefresh() {
+        if (refresher == null)
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "zone-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        refresh = refresher.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval,
+                TimeUnit.SECONDS);
+    }
+
+    // @return the zone read from a file, keeping only the record types used by the application
+    private static Zone read(String file, String origin) throws IOException {
+        ZoneBuilder builder = new ZoneBuilder(normalize(origin));
+        try (FileReader reader = new FileReader(file)) {
+            ZoneFileReader.read(reader, origin, builder::add);
+        }
+        return builder.build();
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static String displayName(String zone) {
+        return zone.isEmpty() ? "." : zone;
+    }
+
+    /** Records of one zone, sorted by owner name, as parallel arrays. Each owner name is stored
+     * once, and maps to the range of its records.
+     */
+    private static class Zone {
+        private final String apex;
+        private final int size;
+        private final Map<String, Integer> first = new HashMap<>();
+        private final int[] count;
+        private final RecordType[] types;
+        private final int[] ttls;
+        private final Object[] data; // InetAddress for A and AAAA records, String otherwise
+
+        private Zone(String apex, String[] owners, RecordType[] types, int[] ttls, Object[] data, int size) {
+            this.apex = apex;
+            this.size = size;
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparing(i -> owners[i]));
+
+            this.count = new int[size];
+            this.types = new RecordType[size];
+            this.ttls = new int[size];
+            this.data = new Object[size];
+            for (int i = 0; i < size; i++) {
+                int from = order[i];
+                this.types[i] = types[from];
+                this.ttls[i] = ttls[from];
+                this.data[i] = data[from];
+                Integer start = first.putIfAbsent(owners[from], i);
+                count[start == null ? i : start]++;
+            }
+        }
+
+        private Set<ResourceRecord> query(String hostName, RecordType type) {
+            // Delegations are searched from the apex down, so the highest zone cut wins
+            List<String> ancestors = new ArrayList<>();
+            for (String name = hostName; !name.equals(apex); name = parent(name))
+                ancestors.add(name);
+            for (int i = ancestors.size() - 1; i >= 0; i--) {
+                String name = ancestors.get(i);
+                if (hasType(name, RecordType.NS))
+                    return referral(name);
+            }
+
+            Set<ResourceRecord> results = new HashSet<>();
+            addRecords(results, hostName, type);
+            if (results.isEmpty() && type != RecordType.CNAME)
+                addRecords(results, hostName, RecordType.CNAME);
+            return results;
+        }
+
+        // @return the NS records of a delegation, with the addresses of its name servers
+        private Set<ResourceRecord> referral(String cut) {
+            Set<ResourceRecord> results = new HashSet<>();
+            addRecords(results, cut, RecordType.NS);
+            for (ResourceRecord ns : new ArrayList<>(results)) {
+                addRecords(results, ns.getTextResult(), RecordType.A);
+                addRecords(results, ns.getTextResult(), RecordType.AAAA);
+            }
+            return results;
+        }
+
+        private boolean hasType(String name, RecordType type) {
+            Integer start = first.get(name);
+            if (start == null) return false;
+            for (int i = start; i < start + count[start]; i++)
+                if (types[i] == type) return true;
+            return false;
+        }
+
+        private void addRecords(Set<ResourceRecord> results, String name, RecordType type) {
+            Integer start = first.get(name);
+            if (start == null) return;
+            for (int i = start; i < start + count[start]; i++) {
+                if (types[i] != type) continue;
+                if (data[i] instanceof InetAddress)
+                    results.add(new ResourceRecord(name, type, ttls[i], (InetAddress) data[i]));
+                else
+                    results.add(new ResourceRecord(name, type, ttls[i], (String) data[i]));
+            }
+        }
+    }
+
+    /** Collects the records of a zone while its file is read. Names repeated across records
+     * (e.g., the name servers shared by many delegations) are stored once.
+     */
+    private static class ZoneBuilder {
+        private final String apex;
+        private final Map<String, String> names = new HashMap<>();
+        private String[] owners = new String[1024];
+        private RecordType[] types = new RecordType[1024];
+        private int[] ttls = new int[1024];
+        private Object[] data = new Object[1024];
+        private int size = 0;
+
+        private ZoneBuilder(String apex) {
+            this.apex = apex;
+        }
+
+        private void add(String owner, long ttl, RecordType type, int typeCode, String value) throws IOException {
+            Object parsed;
+            switch (type) {
+                case A:
+                case AAAA:
+                    // Literal addresses only: no lookup is made
+                    parsed = ReverseLookup.parseAddress(value);
+                    if (parsed == null) throw new IllegalArgumentException("Not an address: " + value);
+                    break;
+                case NS:
+                case CNAME:
+                case PTR:
+                    parsed = intern(value);
+                    break;
+                default:
+                    return;
+            }
+            if (size == owners.length) {
+                owners = Arrays.copyOf(owners, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+                ttls = Arrays.copyOf(ttls, size * 2);
+                data = Arrays.copyOf(data, size * 2);
+            }
+            owners[size] = intern(owner);
+            types[size] = type;
+            ttls[size] = (int) Math.min(Integer.MAX_VALUE, ttl);
+            data[size] = parsed;
+            size++;
+        }
+
+        private String intern(String name) {
+            String existing = names.putIfAbsent(name, name);
+            return existing == null ? name : existing;
+        }
+
+        private Zone build() throws IOException {
+            if (!names.containsKey(apex))
+                throw new IOException("No records found for zone " + displayName(apex));
+            return new Zone(apex, owners, types, ttls, data, size);
+        }
+    }
+}
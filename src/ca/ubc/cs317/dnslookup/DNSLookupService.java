@@ -1,23 +1,41 @@
 package ca.ubc.cs317.dnslookup;
 
+import javax.management.JMException;
+import java.io.BufferedReader;
 import java.io.Console;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_REFERRALS = 10;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 3;
+    private static final int MAX_PARALLEL_REVERSE_LOOKUPS = 32;
     private static InetAddress rootServer;
     private static DNSCache cache = DNSCache.getInstance();
-    public static boolean answerReceived = false;
-    private static boolean cnameRequestReceived = false;
-    public static boolean cnameResponseReceived = false;
-    public static InetAddress cnameServer;
-    private static String cnameHostName = "";
+    private static DNSServerSelector serverSelector = DNSServerSelector.getInstance();
+    private static DNSMetrics metrics = DNSMetrics.getInstance();
+    private static DNSTraceRecorder tracer = DNSTraceRecorder.getInstance();
+    private static DNSQueryScheduler scheduler = DNSQueryScheduler.getInstance();
+    private static DNSLocalZones localZones = DNSLocalZones.getInstance();
+    private static DNSOverrides overrides = DNSOverrides.getInstance();
+    private static DNSPeerCache peerCache = DNSPeerCache.getInstance();
+
+    // Marker for a zone held locally: queries for it are answered without contacting a server
+    private static final List<InetAddress> LOCAL_ZONE = Collections.unmodifiableList(new ArrayList<>());
+    private static final ExecutorService nameServerLookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ns-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Main function, called when program is first invoked.
@@ -36,7 +54,6 @@ public class DNSLookupService {
 
         try {
             rootServer = InetAddress.getByName(args[0]);
-            cnameServer = rootServer;
             System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
@@ -44,10 +61,9 @@ public class DNSLookupService {
         }
 
         try {
-            DNSQueryHandler.openSocket();
-        } catch (SocketException ex) {
-            ex.printStackTrace();
-            System.exit(1);
+            metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Metrics are not available through JMX (" + e.getMessage() + ").");
         }
 
         Scanner in = new Scanner(System.in);
@@ -91,23 +107,145 @@ public class DNSLookupService {
                     System.out.println("Invalid call. Format:\n\tserver IP");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    boolean verboseTracing = false;
-                    if (commandArgs[1].equalsIgnoreCase("on")) {
-                        verboseTracing = true;
-                        DNSQueryHandler.setVerboseTracing(true);
+                // TRACE: Turn trace setting on or off, or select which lookups are traced and where
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on")) {
+                    tracer.setTraceAll(true);
+                    System.out.println("Verbose tracing is now: ON");
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    tracer.stopTracing();
+                    System.out.println("Verbose tracing is now: OFF");
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("sample")) {
+                    try {
+                        tracer.setSampling(Integer.parseInt(commandArgs[2]));
+                        System.out.println("Tracing one in " + tracer.getSampling() + " lookups");
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid sampling interval: " + commandArgs[2]);
                     }
-                    else if (commandArgs[1].equalsIgnoreCase("off")) {
-                        DNSQueryHandler.setVerboseTracing(false);
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("name")) {
+                    tracer.traceName(commandArgs[2]);
+                    System.out.println("Tracing all lookups for " + commandArgs[2]);
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("file")) {
+                    try {
+                        tracer.setOutputFile(commandArgs[2]);
+                        System.out.println("Traces are now written to " + commandArgs[2]);
+                    } catch (IOException e) {
+                        System.err.println("Invalid trace file (" + e.getMessage() + ").");
                     }
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
-                        continue;
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("console")) {
+                    tracer.setOutputConsole();
+                    System.out.println("Traces are now printed on the console");
+                } else {
+                    System.err.println("Invalid call. Format:\n\ttrace on|off|console\n\ttrace sample N\n\ttrace name fqdn\n\ttrace file path");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("ipv6")) {
+                // IPV6: Turn IPv6 transport to name servers on or off
+                if (commandArgs.length == 2 && (commandArgs[1].equalsIgnoreCase("on") ||
+                        commandArgs[1].equalsIgnoreCase("off"))) {
+                    serverSelector.setIPv6Enabled(commandArgs[1].equalsIgnoreCase("on"));
+                    System.out.println("IPv6 transport is now: " + (serverSelector.isIPv6Enabled() ? "ON" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tipv6 on|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("limit")) {
+                // LIMIT: set per-server limits on upstream queries
+                try {
+                    if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("inflight")) {
+                        scheduler.setMaxInFlight(Integer.parseInt(commandArgs[2]));
+                        System.out.println("Queries in flight per server: " + scheduler.getMaxInFlight());
+                    } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("rate")) {
+                        scheduler.setRateLimit(Double.parseDouble(commandArgs[2]));
+                        System.out.println("Queries per second per server: " + scheduler.getRateLimit());
+                    } else {
+                        System.err.println("Invalid call. Format:\n\tlimit inflight N\n\tlimit rate R");
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid limit: " + commandArgs[2]);
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("zone")) {
+                // ZONE: manage local copies of zones (e.g., the root zone) answered without queries
+                if ((commandArgs.length == 3 || commandArgs.length == 4) && commandArgs[1].equalsIgnoreCase("load")) {
+                    String origin = commandArgs.length == 4 ? commandArgs[3] : ".";
+                    try {
+                        int records = localZones.load(commandArgs[2], origin);
+                        System.out.println("Zone " + origin + " loaded (" + records + " records)");
+                    } catch (IOException e) {
+                        System.err.println("Invalid zone file (" + e.getMessage() + ").");
+                    }
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("unload")) {
+                    localZones.unload(commandArgs[2]);
+                    System.out.println("Zone " + commandArgs[2] + " is no longer held locally");
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("refresh")) {
+                    localZones.refresh();
+                    System.out.println("Zones reloaded");
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("refresh")) {
+                    try {
+                        localZones.setRefreshInterval(Long.parseLong(commandArgs[2]));
+                        System.out.println("Zones are reloaded every " + localZones.getRefreshInterval() + " s");
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid refresh interval: " + commandArgs[2]);
+                    }
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("list")) {
+                    localZones.dump(System.out);
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("hints")) {
+                    try {
+                        System.out.println("Root hints loaded (" + loadRootHints(commandArgs[2]) + " records)");
+                    } catch (IOException e) {
+                        System.err.println("Invalid hints file (" + e.getMessage() + ").");
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
                 } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    System.err.println("Invalid call. Format:\n\tzone load file [origin]\n\tzone unload origin" +
+                            "\n\tzone refresh [seconds]\n\tzone list\n\tzone hints file");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("override")) {
+                // OVERRIDE: answer names from a prebuilt index of local overrides and block lists
+                try {
+                    if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("load")) {
+                        int entries = overrides.load(commandArgs[2]);
+                        System.out.println("Overrides loaded (" + entries + " entries)");
+                    } else if (commandArgs.length >= 4 && commandArgs[1].equalsIgnoreCase("build")) {
+                        OverrideIndexWriter writer = new OverrideIndexWriter();
+                        for (int i = 3; i < commandArgs.length; i++)
+                            writer.addSource(commandArgs[i]);
+                        try (FileOutputStream out = new FileOutputStream(commandArgs[2])) {
+                            writer.write(out);
+                        }
+                        System.out.println("Override index " + commandArgs[2] + " built (" + writer.size() + " entries)");
+                    } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("unload")) {
+                        overrides.unload();
+                        System.out.println("Overrides are no longer used");
+                    } else if (commandArgs.length == 1) {
+                        System.out.println("Overrides: " + (overrides.isLoaded() ? overrides.describe() : "none"));
+                    } else {
+                        System.err.println("Invalid call. Format:\n\toverride\n\toverride load index" +
+                                "\n\toverride build index source...\n\toverride unload");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Invalid override file (" + e.getMessage() + ").");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("peer")) {
+                // PEER: share cached records with other resolver instances
+                try {
+                    if ((commandArgs.length == 3 || commandArgs.length == 4) &&
+                            commandArgs[1].equalsIgnoreCase("listen")) {
+                        InetAddress local = commandArgs.length == 4 ? InetAddress.getByName(commandArgs[3]) : null;
+                        int port = peerCache.start(local, Integer.parseInt(commandArgs[2]));
+                        System.out.println("Listening for peers on port " + port);
+                    } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("add")) {
+                        peerCache.addPeer(parsePeer(commandArgs[2]));
+                    } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("remove")) {
+                        peerCache.removePeer(parsePeer(commandArgs[2]));
+                    } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("stop")) {
+                        peerCache.stop();
+                        System.out.println("No longer sharing records with peers");
+                    } else if (commandArgs.length == 1 || commandArgs[1].equalsIgnoreCase("list")) {
+                        for (InetSocketAddress peer : peerCache.getPeers())
+                            System.out.println(peer.getAddress().getHostAddress() + ":" + peer.getPort());
+                    } else {
+                        System.err.println("Invalid call. Format:\n\tpeer listen port [address]" +
+                                "\n\tpeer add host:port\n\tpeer remove host:port\n\tpeer list\n\tpeer stop");
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    System.err.println("Invalid peer (" + e.getMessage() + ").");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
@@ -119,32 +257,104 @@ public class DNSLookupService {
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, PTR");
                         continue;
                     }
                 else {
                     System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                InetAddress address = type == RecordType.PTR ? ReverseLookup.parseAddress(commandArgs[1]) : null;
+                findAndPrintResults(address == null ? commandArgs[1] : ReverseLookup.reverseName(address), type);
+            } else if (commandArgs[0].equalsIgnoreCase("reverse")) {
+                // REVERSE: Find the names of many addresses, given on the command or in a file
+                List<InetAddress> addresses = new ArrayList<>();
+                boolean fromFile = commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("file");
+                try {
+                    if (fromFile) {
+                        addresses.addAll(readAddresses(commandArgs[2]));
+                    } else {
+                        for (int i = 1; i < commandArgs.length; i++) {
+                            InetAddress address = ReverseLookup.parseAddress(commandArgs[i]);
+                            if (address == null) throw new IOException("not an address: " + commandArgs[i]);
+                            addresses.add(address);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Invalid addresses (" + e.getMessage() + ").");
+                    continue;
+                }
+                if (fromFile && addresses.isEmpty()) {
+                    System.err.println("No addresses found in " + commandArgs[2] + ".");
+                    continue;
+                } else if (addresses.isEmpty()) {
+                    System.err.println("Invalid call. Format:\n\treverse address...\n\treverse file path");
+                    continue;
+                }
+                try {
+                    Map<InetAddress, List<String>> names = ReverseLookup.resolveAll(addresses,
+                            MAX_PARALLEL_REVERSE_LOOKUPS, DNSResolution.DEFAULT_BUDGET);
+                    for (Map.Entry<InetAddress, List<String>> entry : names.entrySet())
+                        System.out.println(entry.getKey().getHostAddress() + "\t" +
+                                (entry.getValue().isEmpty() ? "-" : String.join(" ", entry.getValue())));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("metrics")) {
+                // METRICS: Print lookup, query and cache metrics
+                metrics.dump(System.out);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\treverse address...|file path");
+                System.err.println("\ttrace on|off|console|sample N|name fqdn|file path");
+                System.err.println("\tipv6 on|off");
+                System.err.println("\tlimit inflight N|rate R");
+                System.err.println("\toverride [load index|build index source...|unload]");
+                System.err.println("\tpeer listen port [address]|add host:port|remove host:port|list|stop");
+                System.err.println("\tzone load file [origin]|unload origin|refresh [seconds]|list|hints file");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tmetrics");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
-        DNSQueryHandler.closeSocket();
+        tracer.drain();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Parses the address of a peer.
+     *
+     * @param text Host name or address, and port, e.g. "127.0.0.1:5353".
+     * @return The address of the peer.
+     * @throws IOException if the text is not a valid peer address.
+     */
+    static InetSocketAddress parsePeer(String text) throws IOException {
+        int colon = text.lastIndexOf(':');
+        if (colon <= 0) throw new IOException("missing port: " + text);
+        try {
+            return new InetSocketAddress(InetAddress.getByName(text.substring(0, colon)),
+                    Integer.parseInt(text.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid port: " + text);
+        }
+    }
+
+    /**
+     * Changes the root server used to start lookups that have no cached delegation.
+     *
+     * @param server Address of the root server.
+     */
+    static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -157,7 +367,9 @@ public class DNSLookupService {
     }
 
     /**
-     * Finds all the results for a specific node.
+     * Finds all the results for a specific node. CNAME chains are followed hop by hop, using
+     * cached aliases whenever possible, and each name that is not cached is resolved starting
+     * at the closest delegation already known for it.
      *
      * @param node             Host and record type to be used for search.
      * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
@@ -165,109 +377,574 @@ public class DNSLookupService {
      *                         regarding CNAME results should increment this value by 1. Once this value
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @return A set of resource records corresponding to the specific query requested. If the name
+     * is an alias, the set contains the CNAME chain followed by the final results, all limited to
+     * the shortest TTL found along the chain.
+     */
+    static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+        if (indirectionLevel > 0) {
+            Set<ResourceRecord> overridden = overrides.lookup(node);
+            Set<ResourceRecord> cached = overridden == null ? cachedAnswer(node) : null;
+            return cached != null ? cached : resolve(node, indirectionLevel, overridden);
+        }
+        return getResults(node, DNSResolution.Priority.INTERACTIVE, DNSResolution.DEFAULT_BUDGET);
+    }
+
+    /**
+     * Finds all the results for a specific node, within a time budget. Once the budget is spent,
+     * no further query is sent (including queries for name server addresses running in other
+     * threads), and the results found so far are returned.
+     *
+     * @param node     Host and record type to be used for search.
+     * @param priority Priority of the queries sent for the lookup, when servers are saturated.
+     * @param budget   Time allowed for the lookup, in milliseconds.
+     * @return A set of resource records corresponding to the specific query requested, as for
+     * getResults(node, 0), or an empty set if the lookup ran out of time.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    static Set<ResourceRecord> getResults(DNSNode node, DNSResolution.Priority priority, long budget) {
+        // Cache hits are answered before any resolution state or trace is created, unless the
+        // lookup may be traced: it then goes through resolve, which traces the cached records
+        long start = System.nanoTime();
+        Set<ResourceRecord> overridden = overrides.lookup(node);
+        Set<ResourceRecord> cached = overridden == null && !tracer.isActive() ? cachedAnswer(node) : null;
+        if (cached != null) {
+            metrics.recordCacheHit();
+            metrics.recordLookup(System.nanoTime() - start);
+            return cached;
+        }
+
+        long trace = tracer.beginLookup(node);
+        DNSResolution resolution = DNSResolution.begin(priority, budget);
+        try {
+            return resolve(node, 0, overridden);
+        } finally {
+            if (resolution.isExpired())
+                metrics.recordDeadlineExceeded();
+            DNSResolution.end();
+            tracer.endLookup(trace);
+            metrics.recordLookup(System.nanoTime() - start);
+        }
+    }
+
+    // @return the records of a node from the cache hit fast lane (a single cache lookup), or null
+    // if the node must be resolved. Overridden nodes must not be looked up here.
+    private static Set<ResourceRecord> cachedAnswer(DNSNode node) {
+        if (p1Flag)
+            return null;
+        Set<ResourceRecord> cached = cache.getValidResults(node);
+        return cached.isEmpty() ? null : cached;
+    }
+
+    // Implementation of getResults, which is only timed for lookups that are not nested. Names
+    // overridden locally (overridden is not null) are never taken from the cache or resolved
+    // upstream.
+    private static Set<ResourceRecord> resolve(DNSNode node, int indirectionLevel,
+                                               Set<ResourceRecord> overridden) {
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
+            queryServer(node, new Delegation("", Collections.emptyList(), Collections.singletonList(rootServer)));
             return Collections.emptySet();
         } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
             return Collections.emptySet();
         }
 
-        // Keep track of all CNAME/NS queries in a stack so they can be re-looked up repeatedly
-        Stack<DNSNode> stack = new Stack<>();
-        while (!answerReceived && indirectionLevel <= MAX_INDIRECTION_LEVEL) {
-            if (cnameResponseReceived) {
-                cnameResponseReceived = false;
-                node = stack.pop();
+        List<ResourceRecord> chain = new ArrayList<>();
+        DNSNode current = node;
+        Set<ResourceRecord> response = Collections.emptySet();
+        boolean queried = false;
+        boolean askedPeers = false;
+        // Hits and misses are counted once per lookup, and not for nested lookups (name servers)
+        boolean counted = indirectionLevel > 0;
+        while (true) {
+            ResourceRecord alias;
+            if (overridden != null) {
+                metrics.recordLocalAnswer();
+                alias = firstRecord(overridden);
+                if (alias == null || alias.getType() != RecordType.CNAME ||
+                        current.getType() == RecordType.CNAME)
+                    return limitToChain(chain, overridden);
+            } else {
+                // Records with a TTL of zero are never cached, so the last response is checked too
+                Set<ResourceRecord> results = cache.getValidResults(current);
+                if (!results.isEmpty() && !queried)
+                    tracer.traceCached(current, results);
+                else if (results.isEmpty())
+                    results = recordsFor(current, response);
+                if (!results.isEmpty()) {
+                    if (!counted) metrics.recordCacheHit();
+                    return limitToChain(chain, results);
+                }
+
+                DNSNode aliasNode = new DNSNode(current.getHostName(), RecordType.CNAME);
+                alias = current.getType() == RecordType.CNAME ? null :
+                        firstRecord(cache.getValidResults(aliasNode));
+                if (alias == null && current.getType() != RecordType.CNAME)
+                    alias = firstRecord(recordsFor(aliasNode, response));
+            }
+            if (alias != null) {
+                if (++indirectionLevel > MAX_INDIRECTION_LEVEL) {
+                    System.err.println("Maximum number of indirection levels reached.");
+                    return Collections.emptySet();
+                }
+                chain.add(alias);
+                current = new DNSNode(alias.getTextResult(), current.getType());
+                overridden = overrides.lookup(current);
+                queried = askedPeers = false;
+                continue;
+            }
+
+            // Nothing cached for this name, or the servers had nothing for it (NXDOMAIN, no data
+            // or no response): only ask once per hop.
+            if (queried || DNSResolution.currentExpired())
+                return limitToChain(chain, Collections.emptySet());
+            if (!counted) {
+                counted = true;
+                metrics.recordCacheMiss();
             }
-            if (cnameRequestReceived) {
-                cnameRequestReceived = false;
-                stack.push(node);
-                node = new DNSNode(cnameHostName, node.getType());
+            // Another instance may have it cached: records from peers are added to the cache
+            if (!askedPeers && peerCache.isEnabled()) {
+                askedPeers = true;
+                if (peerCache.query(current))
+                    continue;
             }
+            response = retrieveResultsFromServer(current, indirectionLevel);
+            queried = true;
+        }
+    }
 
-            if ((!stack.isEmpty()) || (!cacheContainsNode(node, cache.getCachedResults(node)))) {
-                retrieveResultsFromServer(node, cnameServer);
+    /**
+     * Retrieves DNS results for a node, starting at the closest delegation found in the cache
+     * or in the local zones (or the root server if none is known). Queries are sent in iterative
+     * mode, and the query is repeated with the next server while the responses are referrals.
+     * Zones held locally are answered without sending a query. Results are stored in the cache.
+     *
+     * @param node             Host name and record type to be used for the query.
+     * @param indirectionLevel Current indirection level, used when name server addresses must
+     *                         be resolved separately.
+     * @return All records of the last response received, or an empty set if there was none.
+     */
+    private static Set<ResourceRecord> retrieveResultsFromServer(DNSNode node, int indirectionLevel) {
+        Delegation delegation = findClosestServers(node.getHostName());
+        Set<ResourceRecord> records = Collections.emptySet();
+        int depth = 0;
+        while (depth < MAX_REFERRALS && delegation != null && !DNSResolution.currentExpired()) {
+            if (delegation.servers == LOCAL_ZONE) {
+                records = queryLocalZone(node);
+            } else {
+                records = queryServer(node, delegation);
+                cacheAnswer(node, records);
+                cacheReferral(node, delegation.zone, records);
             }
-            indirectionLevel++;
+            depth++;
+            if (records.isEmpty() || containsAnswer(node, records))
+                break;
+            delegation = selectReferralServers(node, delegation.zone, records, indirectionLevel);
         }
-        answerReceived = false;
-        return cache.getCachedResults(node);
+        metrics.recordDelegationDepth(depth);
+        return records;
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Sends a query to one of the servers of a zone. The query is sent
+     * through the scheduler, which picks the first server (in order of preference) that is not
+     * saturated, or waits for one. If the server does not respond, cannot be reached or cannot
+     * answer (SERVFAIL, REFUSED, e.g. from a lame server), the query is sent to the next server,
+     * which may be the other address of the same name server.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node       Host name and record type to be used for the query.
+     * @param delegation Zone whose servers may be used for the query.
+     * @return All records of the response, or an empty set if the server returned a name error
+     * or no server could answer.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
+    private static Set<ResourceRecord> queryServer(DNSNode node, Delegation delegation) {
         byte[] message = new byte[512]; // query is no longer than 512 bytes
 
-        try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
-            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
+        List<InetAddress> candidates = delegation.servers;
+        Set<InetAddress> failed = new HashSet<>();
+        while (!candidates.isEmpty() && !DNSResolution.currentExpired()) {
+            InetAddress server;
+            try {
+                server = scheduler.acquire(candidates, DNSResolution.current());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptySet();
+            }
+            if (server == null)
+                return Collections.emptySet();
 
-            if (p1Flag) return; // For testing part 1 only
+            try {
+                DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+                return DNSQueryHandler.decodeResponse(serverResponse.getTransactionID(),
+                        serverResponse.getResponse());
+            } catch (IOException e) {
+                failed.add(server);
+            } finally {
+                scheduler.release(server);
+            }
+            // Ranked again: the family of a name server that failed is chosen again
+            Set<InetAddress> next = new LinkedHashSet<>(rankServers(delegation.nameservers));
+            next.addAll(delegation.servers);
+            next.removeAll(failed);
+            candidates = new ArrayList<>(next);
+        }
+        return Collections.emptySet();
+    }
 
-            queryNextLevel(node, nameservers);
+    /**
+     * Caches the answer records of a response: records of the type queried, and CNAME records,
+     * whose owner is the name queried or an alias it leads to. Records for other names are not
+     * cached, so a server cannot add records for names it was not asked about.
+     *
+     * @param node    Host name and record type of the query.
+     * @param records All records of the response.
+     */
+    private static void cacheAnswer(DNSNode node, Set<ResourceRecord> records) {
+        for (ResourceRecord rr : answerRecords(node, records)) {
+            cache.addResult(rr);
+            peerCache.publish(rr);
+        }
+    }
 
-        } catch (IOException | NullPointerException ignored){}
+    /**
+     * Selects the records that answer a query: records of the type queried, and CNAME records,
+     * whose owner is the name queried or an alias it leads to.
+     *
+     * @param node    Host name and record type of the query.
+     * @param records Records received for the query, in any order.
+     * @return The records that answer the query.
+     */
+    static List<ResourceRecord> answerRecords(DNSNode node, Collection<ResourceRecord> records) {
+        Set<String> names = new HashSet<>();
+        names.add(node.getHostName().toLowerCase());
+        // Aliases may appear in any order
+        for (boolean added = true; added; ) {
+            added = false;
+            for (ResourceRecord rr : records) {
+                if (rr.getType() == RecordType.CNAME && names.contains(rr.getHostName().toLowerCase()))
+                    added |= names.add(rr.getTextResult().toLowerCase());
+            }
+        }
+        List<ResourceRecord> answer = new ArrayList<>();
+        for (ResourceRecord rr : records) {
+            if ((rr.getType() == node.getType() || rr.getType() == RecordType.CNAME) &&
+                    names.contains(rr.getHostName().toLowerCase()))
+                answer.add(rr);
+        }
+        return answer;
     }
 
     /**
-     * Query the next level DNS Server, if necessary
+     * Caches the delegation records of a response: NS records for a zone that is within the zone
+     * of the server queried and encloses the name being resolved, and the glue addresses of their
+     * name servers that are within the zone of the server. Other NS and address records are not
+     * cached, so a server cannot redirect lookups for names outside its own zone.
      *
-     * @param node        Host name and record type of the query.
-     * @param nameservers List of name servers returned from the previous level to query the next level.
+     * @param node    Host name and record type of the query.
+     * @param zone    Zone of the server that was queried.
+     * @param records All records of the response.
      */
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
-        // If the query responds with CNAME, then resolve that CNAME and return the IP for it instead
-        for (int i = 0; i < 10 && !answerReceived && !cnameResponseReceived; i++) {
-            try {
-                InetAddress server = null;
-                for (ResourceRecord rr : nameservers) {
-                    if (rr.getType() == RecordType.A) {
-                        server = rr.getInetResult();
-                    }
-                }
-                if (server == null) {
-                    for (ResourceRecord rr : nameservers) {
-                        if (rr.getType() == RecordType.NS || rr.getType() == RecordType.CNAME) {
-                            cnameHostName = rr.getTextResult();
-                            cnameRequestReceived = true;
-                        }
-                    }
-                    break;
+    private static void cacheReferral(DNSNode node, String zone, Set<ResourceRecord> records) {
+        Set<String> nameservers = new HashSet<>();
+        for (ResourceRecord rr : records) {
+            if (rr.getType() == RecordType.NS && isInZone(rr.getHostName(), zone) &&
+                    isInZone(node.getHostName(), rr.getHostName())) {
+                cache.addResult(rr);
+                peerCache.publish(rr);
+                nameservers.add(rr.getTextResult().toLowerCase());
+            }
+        }
+        for (ResourceRecord rr : records) {
+            if ((rr.getType() == RecordType.A || rr.getType() == RecordType.AAAA) &&
+                    nameservers.contains(rr.getHostName().toLowerCase()) &&
+                    isInZone(rr.getHostName(), zone)) {
+                cache.addResult(rr);
+                peerCache.publish(rr);
+            }
+        }
+    }
+
+    /**
+     * Answers a query from a zone held locally, and caches the records as if they had been
+     * received from one of its servers.
+     *
+     * @param node Host name and record type to be used for the query.
+     * @return The records of the local answer or referral, or an empty set if the zone has none.
+     */
+    private static Set<ResourceRecord> queryLocalZone(DNSNode node) {
+        Set<ResourceRecord> records = localZones.query(node);
+        for (ResourceRecord record : records)
+            cache.addResult(record);
+        metrics.recordLocalAnswer();
+        return records;
+    }
+
+    /**
+     * Finds the addresses of the servers for the closest enclosing zone of a host name, using NS
+     * records and addresses already in the cache. Cached NS records for the root zone (e.g., from
+     * a root hints file) are used before falling back to the root server given at startup.
+     *
+     * @param hostName Host name being resolved.
+     * @return The closest cached delegation, with the addresses of its name servers (best first)
+     * or LOCAL_ZONE if the zone is held locally, or the root zone with the root server.
+     */
+    private static Delegation findClosestServers(String hostName) {
+        for (String zone = hostName; ; zone = parentZone(zone)) {
+            if (localZones.contains(zone))
+                return new Delegation(zone, Collections.emptyList(), LOCAL_ZONE);
+            List<String> nameservers = new ArrayList<>();
+            for (ResourceRecord ns : cache.getCachedResults(new DNSNode(zone, RecordType.NS)))
+                nameservers.add(ns.getTextResult());
+            List<InetAddress> servers = rankServers(nameservers);
+            if (!servers.isEmpty())
+                return new Delegation(zone, nameservers, servers);
+            if (zone.isEmpty())
+                return new Delegation(zone, nameservers, Collections.singletonList(rootServer));
+        }
+    }
+
+    /**
+     * Reads addresses from a file, one per line (only the first field of each line is used, so
+     * log files with the address first can be read directly). Lines that do not start with an
+     * address are skipped.
+     *
+     * @param file Path of the file.
+     * @return The addresses, in the order found.
+     * @throws IOException if the file could not be read.
+     */
+    private static List<InetAddress> readAddresses(String file) throws IOException {
+        List<InetAddress> addresses = new ArrayList<>();
+        try (BufferedReader lines = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+", 2);
+                InetAddress address = ReverseLookup.parseAddress(fields[0]);
+                if (address != null)
+                    addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Loads root hints (the NS records of the root zone and the addresses of the root servers)
+     * from a file in the master file format into the cache. Lookups then start at any of the
+     * root servers, instead of only the one given at startup.
+     *
+     * @param file Path of the hints file.
+     * @return Number of records loaded.
+     * @throws IOException if the file could not be read or is invalid.
+     */
+    static int loadRootHints(String file) throws IOException {
+        List<ResourceRecord> hints = new ArrayList<>();
+        try (FileReader reader = new FileReader(file)) {
+            ZoneFileReader.read(reader, "", (owner, ttl, type, typeCode, data) -> {
+                if (type == RecordType.NS)
+                    hints.add(new ResourceRecord(owner, type, ttl, data));
+                else if (type == RecordType.A || type == RecordType.AAAA) {
+                    InetAddress address = ReverseLookup.parseAddress(data);
+                    if (address == null) throw new IllegalArgumentException("Not an address: " + data);
+                    hints.add(new ResourceRecord(owner, type, ttl, address));
                 }
-                byte[] message = new byte[512]; // query is no longer than 512 bytes
-                DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
-                nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(), cache);
+            });
+        }
+        for (ResourceRecord hint : hints)
+            cache.addResult(hint);
+        return hints.size();
+    }
 
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Ranks the cached IPv4 and IPv6 addresses of a set of name servers. One address is selected
+     * for each name server, based on the address family chosen for it, and the addresses are
+     * sorted by measured RTT.
+     *
+     * @param nameservers Host names of the name servers of a zone.
+     * @return The selected addresses, best first, or an empty list if no address is cached for
+     * any of the name servers.
+     */
+    private static List<InetAddress> rankServers(Collection<String> nameservers) {
+        List<InetAddress> ranked = new ArrayList<>();
+        for (String ns : nameservers) {
+            List<InetAddress> addresses = new ArrayList<>();
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(ns, RecordType.A)))
+                addresses.add(address.getInetResult());
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(ns, RecordType.AAAA)))
+                addresses.add(address.getInetResult());
+
+            InetAddress selected = serverSelector.selectAddress(ns, addresses);
+            if (selected != null && !ranked.contains(selected))
+                ranked.add(selected);
+        }
+        ranked.sort(Comparator.comparingLong(serverSelector::getSmoothedRtt));
+        return ranked;
+    }
+
+    /**
+     * Selects the next servers to query from a referral response. Glue addresses are used when
+     * available (preferring the address family with the best RTT), otherwise the addresses of
+     * several name servers are resolved concurrently.
+     *
+     * @param node             Host name and record type of the query.
+     * @param zone             Zone of the server that returned the referral.
+     * @param records          Records returned in the referral.
+     * @param indirectionLevel Current indirection level.
+     * @return The delegated zone, with the addresses of its servers (best first) or LOCAL_ZONE if
+     * it is held locally, or null if the response is not a usable referral.
+     */
+    private static Delegation selectReferralServers(DNSNode node, String zone, Set<ResourceRecord> records,
+                                                    int indirectionLevel) {
+        List<String> nameservers = new ArrayList<>();
+        List<String> resolvable = new ArrayList<>();
+        String delegated = null;
+        for (ResourceRecord rr : records) {
+            // Only a zone below the zone of the server, enclosing the name, can be delegated
+            if (rr.getType() == RecordType.NS && isInZone(node.getHostName(), rr.getHostName()) &&
+                    isInZone(rr.getHostName(), zone) && !rr.getHostName().equalsIgnoreCase(zone)) {
+                if (localZones.contains(rr.getHostName()))
+                    return new Delegation(rr.getHostName(), Collections.emptyList(), LOCAL_ZONE);
+                delegated = rr.getHostName();
+                nameservers.add(rr.getTextResult());
+                // A name server inside the delegated zone can only be reached through glue:
+                // resolving it would lead back to this same referral
+                if (!isInZone(rr.getTextResult(), rr.getHostName()))
+                    resolvable.add(rr.getTextResult());
             }
         }
+        if (delegated == null)
+            return null;
+        List<InetAddress> servers = rankServers(nameservers);
+        if (!servers.isEmpty())
+            return new Delegation(delegated, nameservers, servers);
+        InetAddress server = resolveNameServers(resolvable, indirectionLevel + 1);
+        return server == null ? null :
+                new Delegation(delegated, nameservers, Collections.singletonList(server));
     }
 
-    private static boolean cacheContainsNode(DNSNode node, Set<ResourceRecord> records) {
-        for (ResourceRecord record : records) {
-            if (record.getNode().equals(node)) {
+    /**
+     * Resolves the addresses of glue-less name servers (IPv4 addresses, or IPv6 addresses for
+     * name servers that have none when IPv6 is enabled). Up to MAX_PARALLEL_NS_LOOKUPS names are
+     * resolved concurrently, and the first address obtained is returned right away. Lookups that
+     * are still running keep going in the background, so their results end up in the cache as
+     * addresses for the same delegation, until the deadline of the resolution. If the deadline
+     * passes before any address is found, the lookups are cancelled.
+     *
+     * @param nameservers      Host names of the name servers of a delegation.
+     * @param indirectionLevel Indirection level to be used for the name server lookups.
+     * @return Address of one of the name servers, or null if none could be resolved.
+     */
+    private static InetAddress resolveNameServers(List<String> nameservers, int indirectionLevel) {
+        CompletionService<InetAddress> lookups = new ExecutorCompletionService<>(nameServerLookups);
+        long trace = tracer.currentTrace();
+        DNSResolution resolution = DNSResolution.current();
+        List<Future<InetAddress>> futures = new ArrayList<>();
+        for (String ns : nameservers) {
+            if (futures.size() == MAX_PARALLEL_NS_LOOKUPS) break;
+            futures.add(lookups.submit(() -> {
+                tracer.resume(trace);
+                DNSResolution.resume(resolution);
+                try {
+                    InetAddress address = resolveAddress(ns, RecordType.A, indirectionLevel);
+                    // Name servers that only have IPv6 addresses can be used too
+                    if (address == null && serverSelector.isIPv6Enabled())
+                        address = resolveAddress(ns, RecordType.AAAA, indirectionLevel);
+                    return address;
+                } finally {
+                    tracer.resume(0);
+                    DNSResolution.end();
+                }
+            }));
+        }
+
+        for (int pending = futures.size(); pending > 0; pending--) {
+            try {
+                Future<InetAddress> lookup = resolution == null ? lookups.take() :
+                        lookups.poll(resolution.remainingNanos(), TimeUnit.NANOSECONDS);
+                if (lookup == null)
+                    break; // out of time
+                InetAddress address = lookup.get();
+                if (address != null)
+                    return address;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ignored) {}
+        }
+        for (Future<InetAddress> lookup : futures)
+            lookup.cancel(true);
+        return null;
+    }
+
+    // @return the first address of a type found for a host name, or null if there is none
+    private static InetAddress resolveAddress(String hostName, RecordType type, int indirectionLevel) {
+        for (ResourceRecord address : getResults(new DNSNode(hostName, type), indirectionLevel)) {
+            if (address.getType() == type)
+                return address.getInetResult();
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a response contains the answer to a query, or an alias for its name.
+     */
+    private static boolean containsAnswer(DNSNode node, Set<ResourceRecord> records) {
+        for (ResourceRecord rr : records) {
+            if (rr.getHostName().equalsIgnoreCase(node.getHostName()) &&
+                    (rr.getType() == node.getType() || rr.getType() == RecordType.CNAME))
                 return true;
-            }
         }
         return false;
     }
 
+    /**
+     * Returns the chain of aliases followed by the final results, all limited to expire with the
+     * earliest record in the chain.
+     */
+    private static Set<ResourceRecord> limitToChain(List<ResourceRecord> chain, Set<ResourceRecord> results) {
+        if (chain.isEmpty())
+            return results;
+
+        ResourceRecord earliest = chain.get(0);
+        for (ResourceRecord record : chain)
+            if (record.expiresBefore(earliest)) earliest = record;
+        for (ResourceRecord record : results)
+            if (record.expiresBefore(earliest)) earliest = record;
+
+        Set<ResourceRecord> limited = new LinkedHashSet<>();
+        for (ResourceRecord record : chain)
+            limited.add(record.expiringNoLaterThan(earliest));
+        for (ResourceRecord record : results)
+            limited.add(record.expiringNoLaterThan(earliest));
+        return limited;
+    }
+
+    // @return the records of a response that match the host name and type of a node
+    private static Set<ResourceRecord> recordsFor(DNSNode node, Set<ResourceRecord> response) {
+        Set<ResourceRecord> matching = new HashSet<>();
+        for (ResourceRecord rr : response) {
+            if (rr.getType() == node.getType() && rr.getHostName().equalsIgnoreCase(node.getHostName()))
+                matching.add(rr);
+        }
+        return matching;
+    }
+
+    private static ResourceRecord firstRecord(Set<ResourceRecord> records) {
+        Iterator<ResourceRecord> iterator = records.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // @return the parent zone of a name (e.g. "cs.ubc.ca" for "www.cs.ubc.ca"), or "" for a TLD
+    private static String parentZone(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    // @return true if name is equal to zone or is a subdomain of it
+    private static boolean isInZone(String name, String zone) {
+        if (zone.isEmpty() || name.equalsIgnoreCase(zone)) return true;
+        return name.length() > zone.length() &&
+                name.regionMatches(true, name.length() - zone.length(), zone, 0, zone.length()) &&
+                name.charAt(name.length() - zone.length() - 1) == '.';
+    }
+
     /**
      * Prints the result of a DNS query.
      *
@@ -279,9 +956,21 @@ public class DNSLookupService {
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), record.getTTL(), record.getTextResult());
+            System.out.printf("%-30s %-5s %-8d %s\n", record.getHostName(),
+                    record.getType(), record.getTTL(), record.getTextResult());
         }
     }
-}
 
+    /** The servers of a zone enclosing a name being resolved. */
+    private static class Delegation {
+        private final String zone;
+        private final List<String> nameservers;
+        private final List<InetAddress> servers; // LOCAL_ZONE if the zone is held locally
+
+        private Delegation(String zone, List<String> nameservers, List<InetAddress> servers) {
+            this.zone = zone;
+            this.nameservers = nameservers;
+            this.servers = servers;
+        }
+    }
+}
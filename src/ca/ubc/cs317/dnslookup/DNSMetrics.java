@@ -0,0 +1,316 @@
+package ca.ubc.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** This class collects metrics about lookups, queries sent to upstream servers and the cache.
+ * Recording is lock-free (striped counters and histograms), so it can stay enabled in production.
+ * Metrics are available through JMX (see DNSMetricsMXBean) and as a text dump.
+ */
+public class DNSMetrics implements DNSMetricsMXBean {
+
+    private static DNSMetrics instance = new DNSMetrics();
+
+    private static final String OBJECT_NAME = "ca.ubc.cs317.dnslookup:type=DNSMetrics";
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+    private static final int MAX_DEPTH = 16;
+
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder queueTimeouts = new LongAdder();
+    private final LongAdder deadlinesExceeded = new LongAdder();
+    private final LongAdder localAnswers = new LongAdder();
+    private final LongAdder peerHits = new LongAdder();
+    private final LongAdder peerMisses = new LongAdder();
+    private final LongAdder peerRecords = new LongAdder();
+    private final Map<InetAddress, LongAdder> queriesPerServer = new ConcurrentHashMap<>();
+    private final AtomicLongArray responseCodes = new AtomicLongArray(16);
+    private final AtomicLongArray delegationDepths = new AtomicLongArray(MAX_DEPTH + 1);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheExpiries = new LongAdder();
+
+    /** Singleton retrieval method. Only one instance of the metrics can be created. This method
+     * returns the single metrics instance.
+     *
+     * @return Instance of the metrics.
+     */
+    public static DNSMetrics getInstance() {
+        return instance;
+    }
+
+    /** Registers the metrics with the platform MBean server, so they can be read with any JMX
+     * client (e.g., jconsole).
+     *
+     * @throws JMException if the metrics could not be registered.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    /** Records a complete lookup, from the request to the final result, including lookups
+     * answered from the cache. Nested lookups (e.g., for name servers) are part of their lookup.
+     *
+     * @param nanos Duration of the lookup, in nanoseconds.
+     */
+    public void recordLookup(long nanos) {
+        lookupLatency.record(nanos);
+    }
+
+    /** Records a query answered by an upstream server.
+     *
+     * @param server Address of the server.
+     * @param nanos  Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public void recordQuery(InetAddress server, long nanos) {
+        queryLatency.record(nanos);
+        queriesPerServer.computeIfAbsent(server, s -> new LongAdder()).increment();
+    }
+
+    /** Records a query that was not answered by an upstream server.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        timeouts.increment();
+        queriesPerServer.computeIfAbsent(server, s -> new LongAdder()).increment();
+    }
+
+    public void recordRetransmit() {
+        retransmits.increment();
+    }
+
+    /** Records a query sent to another server than the preferred one, because the preferred
+     * server was saturated.
+     */
+    public void recordRedirect() {
+        redirects.increment();
+    }
+
+    /** Records a query that was never sent, because all its servers stayed saturated. */
+    public void recordQueueTimeout() {
+        queueTimeouts.increment();
+    }
+
+    /** Records a lookup that ran out of time before it was complete. */
+    public void recordDeadlineExceeded() {
+        deadlinesExceeded.increment();
+    }
+
+    /** Records a query answered from a zone held locally or from an override, without contacting
+     * a server.
+     */
+    public void recordLocalAnswer() {
+        localAnswers.increment();
+    }
+
+    /** Records a name found in the cache of a peer, so no query was sent upstream. */
+    public void recordPeerHit() {
+        peerHits.increment();
+    }
+
+    /** Records a name that no peer had in its cache. */
+    public void recordPeerMiss() {
+        peerMisses.increment();
+    }
+
+    /** Records records replicated by a peer.
+     *
+     * @param count Number of records received.
+     */
+    public void recordPeerRecords(int count) {
+        peerRecords.add(count);
+    }
+
+    /** Records the header of a response.
+     *
+     * @param rcode     Response code of the response.
+     * @param truncated true if the TC flag of the response is set.
+     */
+    public void recordResponse(int rcode, boolean truncated) {
+        responseCodes.incrementAndGet(rcode & 0xF);
+        if (truncated) this.truncated.increment();
+    }
+
+    /** Records the number of servers queried, following referrals, to resolve a name.
+     *
+     * @param depth Number of servers queried.
+     */
+    public void recordDelegationDepth(int depth) {
+        delegationDepths.incrementAndGet(Math.min(depth, MAX_DEPTH));
+    }
+
+    /** Records a lookup answered from the cache, without any query. Reads of the cache made
+     * internally during a lookup (e.g., for name servers) are not counted.
+     */
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    /** Records a lookup that could not be answered from the cache, so queries were sent. */
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /** Records a query removed from the cache because all its records had expired. Each removal
+     * is counted once, however many times the expired records were read.
+     */
+    public void recordCacheExpiry() {
+        cacheExpiries.increment();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public String getLookupLatency() {
+        return lookupLatency.toString();
+    }
+
+    @Override
+    public long getQueries() {
+        return queryLatency.getCount() + timeouts.sum();
+    }
+
+    @Override
+    public String getQueryLatency() {
+        return queryLatency.toString();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTruncatedResponses() {
+        return truncated.sum();
+    }
+
+    @Override
+    public long getRedirectedQueries() {
+        return redirects.sum();
+    }
+
+    @Override
+    public long getQueueTimeouts() {
+        return queueTimeouts.sum();
+    }
+
+    @Override
+    public long getDeadlinesExceeded() {
+        return deadlinesExceeded.sum();
+    }
+
+    @Override
+    public long getLocalAnswers() {
+        return localAnswers.sum();
+    }
+
+    @Override
+    public long getPeerHits() {
+        return peerHits.sum();
+    }
+
+    @Override
+    public long getPeerMisses() {
+        return peerMisses.sum();
+    }
+
+    @Override
+    public long getPeerRecordsReceived() {
+        return peerRecords.sum();
+    }
+
+    @Override
+    public Map<String, Long> getQueriesPerServer() {
+        Map<String, Long> queries = new TreeMap<>();
+        queriesPerServer.forEach((server, count) -> queries.put(server.getHostAddress(), count.sum()));
+        return queries;
+    }
+
+    @Override
+    public Map<String, Long> getResponseCodes() {
+        Map<String, Long> codes = new TreeMap<>();
+        for (int i = 0; i < responseCodes.length(); i++) {
+            if (responseCodes.get(i) > 0)
+                codes.put(i < RCODE_NAMES.length ? RCODE_NAMES[i] : "RCODE" + i, responseCodes.get(i));
+        }
+        return codes;
+    }
+
+    @Override
+    public Map<String, Long> getDelegationDepths() {
+        Map<String, Long> depths = new TreeMap<>();
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            if (delegationDepths.get(i) > 0)
+                depths.put(String.format("%02d%s", i, i == MAX_DEPTH ? "+" : ""), delegationDepths.get(i));
+        }
+        return depths;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getCacheExpiries() {
+        return cacheExpiries.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.sum(), lookups = hits + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Prints all metrics in a human-readable format.
+     *
+     * @param out Stream where the metrics are printed.
+     */
+    public void dump(PrintStream out) {
+        out.println("Lookups            " + getLookupLatency());
+        out.println("  past deadline    " + getDeadlinesExceeded());
+        out.println("Queries            sent=" + getQueries() + ", answered " + getQueryLatency());
+        out.println("  local answers    " + getLocalAnswers());
+        out.println("  peer cache       hits=" + getPeerHits() + " misses=" + getPeerMisses() +
+                " records received=" + getPeerRecordsReceived());
+        out.println("  timeouts         " + getTimeouts());
+        out.println("  retransmits      " + getRetransmits());
+        out.println("  truncated        " + getTruncatedResponses());
+        out.println("  redirected       " + getRedirectedQueries());
+        out.println("  queue timeouts   " + getQueueTimeouts());
+        out.println("  response codes   " + getResponseCodes());
+        out.println("  delegation depth " + getDelegationDepths());
+        out.println("  per server       " + getQueriesPerServer());
+        out.printf("Cache              hits=%d misses=%d expired=%d hit rate=%.1f%%\n", getCacheHits(),
+                getCacheMisses(), getCacheExpiries(), 100 * getCacheHitRate());
+    }
+}
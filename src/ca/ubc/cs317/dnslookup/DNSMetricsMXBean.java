@@ -0,0 +1,51 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Map;
+
+/** Management interface of the resolver metrics, as exposed through JMX. Latency summaries are
+ * returned as text (see LatencyHistogram.toString), counters as plain numbers.
+ */
+public interface DNSMetricsMXBean {
+
+    long getLookups();
+
+    String getLookupLatency();
+
+    long getQueries();
+
+    String getQueryLatency();
+
+    long getTimeouts();
+
+    long getRetransmits();
+
+    long getTruncatedResponses();
+
+    long getRedirectedQueries();
+
+    long getQueueTimeouts();
+
+    long getDeadlinesExceeded();
+
+    long getLocalAnswers();
+
+    long getPeerHits();
+
+    long getPeerMisses();
+
+    long getPeerRecordsReceived();
+
+    Map<String, Long> getQueriesPerServer();
+
+    Map<String, Long> getResponseCodes();
+
+    Map<String, Long> getDelegationDepths();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheExpiries();
+
+    double getCacheHitRate();
+}
@@ -0,0 +1,235 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static ca.ubc.cs317.dnslookup.OverrideIndexWriter.*;
+
+/** This class answers names from local overrides (internal zones, hosts files and block lists)
+ * before the cache and the iterative resolution are used. Overrides are read from an index file
+ * prebuilt with OverrideIndexWriter, which is mapped into memory rather than parsed, so an index
+ * of millions of names is available as soon as it is loaded. Only the offset table is read in
+ * full, to check it when the index is loaded; other pages are read from disk when used.
+ * <p>
+ * A name is answered from its own entries if it has any. Otherwise, the closest enclosing name
+ * with wildcard ("*.name") or suffix (".name") entries is used, as for DNS wildcards. Names are
+ * matched in lower case, as the keys of the cache (DNSNode) are.
+ */
+public class DNSOverrides {
+
+    private static DNSOverrides instance = new DNSOverrides();
+
+    private volatile Index index = null;
+
+    /** Singleton retrieval method. Only one instance of the overrides can be created. This method
+     * returns the single overrides instance.
+     *
+     * @return Instance of the overrides.
+     */
+    public static DNSOverrides getInstance() {
+        return instance;
+    }
+
+    /** Maps an index file into memory and uses it for all lookups from then on, replacing any
+     * index previously loaded.
+     *
+     * @param file Path of the index file.
+     * @return Number of entries in the index.
+     * @throws IOException if the file could not be mapped or is not a valid index.
+     */
+    public int load(String file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Index is too large");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not an override index: " + file);
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported override index version " + buffer.getInt(4));
+        Index loaded = new Index(buffer, file);
+        if (!loaded.isComplete())
+            throw new IOException("Truncated or corrupted override index: " + file);
+        index = loaded;
+        return loaded.count;
+    }
+
+    /** Stops using overrides. */
+    public void unload() {
+        index = null;
+    }
+
+    public boolean isLoaded() {
+        return index != null;
+    }
+
+    /** Returns a description of the index in use.
+     *
+     * @return The path and number of entries of the index, or null if none is loaded.
+     */
+    public String describe() {
+        Index current = index;
+        return current == null ? null : current.file + " (" + current.count + " entries)";
+    }
+
+    /** Answers a query from the overrides, if any applies to the name.
+     *
+     * @param node Host name and record type of the query.
+     * @return null if no override applies to the name, so it must be resolved normally. Otherwise
+     * the records of the requested type (or the CNAME record) for the name, or an empty set if the
+     * name is blocked or has no such records.
+     */
+    public Set<ResourceRecord> lookup(DNSNode node) {
+        Index current = index;
+        if (current == null)
+            return null;
+
+        String hostName = node.getHostName().toLowerCase();
+        if (hostName.endsWith("."))
+            hostName = hostName.substring(0, hostName.length() - 1);
+        byte[] name = hostName.getBytes(StandardCharsets.US_ASCII);
+
+        int first = current.find(name, 0, EXACT);
+        if (first < 0)
+            first = current.find(name, 0, SUFFIX);
+        // Closest enclosing wildcard or suffix entries
+        for (int dot = 0; first < 0; ) {
+            while (dot < name.length && name[dot] != '.') dot++;
+            if (dot >= name.length) return null;
+            dot++;
+            first = current.find(name, dot, WILDCARD);
+            if (first < 0)
+                first = current.find(name, dot, SUFFIX);
+        }
+        return current.answer(first, hostName, node.getType());
+    }
+
+    /** A mapped index file. All reads use absolute positions, so the buffer is shared by all
+     * threads without copies or locking.
+     */
+    private static class Index {
+        private final ByteBuffer buffer;
+        private final String file;
+        private final int count;
+
+        private Index(ByteBuffer buffer, String file) {
+            this.buffer = buffer;
+            this.file = file;
+            this.count = buffer.getInt(8);
+        }
+
+        // @return true if the offsets of all entries follow the offset table in increasing order
+        // (as written by OverrideIndexWriter) and the last entry ends within the file, so every
+        // entry lies between the offset table and the end of the file. Entries are not read.
+        private boolean isComplete() {
+            if (count < 0 || HEADER_SIZE + 4L * count > buffer.capacity())
+                return false;
+            int previous = HEADER_SIZE + 4 * count - 1;
+            for (int i = 0; i < count; i++) {
+                int entry = offset(i);
+                if (entry <= previous || entry >= buffer.capacity())
+                    return false;
+                previous = entry;
+            }
+            return count == 0 || isEntryInFile(offset(count - 1));
+        }
+
+        private boolean isEntryInFile(int entry) {
+            int dataPosition = entry + 1 + nameLength(entry) + 3 + 4 + 2; // after name, kind, type, TTL
+            if (dataPosition > buffer.capacity())
+                return false;
+            return dataPosition + (buffer.getShort(dataPosition - 2) & 0xFFFF) <= buffer.capacity();
+        }
+
+        // @return the position of the first entry for the suffix of name starting at start, with
+        // the given kind, or -1 if there is none
+        private int find(byte[] name, int start, byte kind) {
+            int low = 0, high = count - 1, found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int result = compare(offset(middle), name, start, kind);
+                if (result < 0) {
+                    low = middle + 1;
+                } else {
+                    if (result == 0) found = middle;
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        // @return records for the entries with the same name and kind as entry first
+        private Set<ResourceRecord> answer(int first, String hostName, RecordType type) {
+            int last = first;
+            while (last + 1 < count && sameKey(offset(first), offset(last + 1)))
+                last++;
+
+            Set<ResourceRecord> results = new HashSet<>();
+            for (int i = first; i <= last; i++)
+                if (typeCode(offset(i)) == NXDOMAIN) return results;
+            addRecords(results, first, last, hostName, type);
+            if (results.isEmpty() && type != RecordType.CNAME)
+                addRecords(results, first, last, hostName, RecordType.CNAME);
+            return results;
+        }
+
+        private void addRecords(Set<ResourceRecord> results, int first, int last, String hostName,
+                                RecordType type) {
+            for (int i = first; i <= last; i++) {
+                int entry = offset(i);
+                if (typeCode(entry) != type.getCode()) continue;
+                int position = entry + 1 + nameLength(entry) + 3;
+                long ttl = buffer.getInt(position) & 0xFFFFFFFFL;
+                byte[] data = new byte[buffer.getShort(position + 4) & 0xFFFF];
+                buffer.get(position + 6, data);
+                try {
+                    if (type == RecordType.A || type == RecordType.AAAA)
+                        results.add(new ResourceRecord(hostName, type, ttl, InetAddress.getByAddress(data)));
+                    else
+                        results.add(new ResourceRecord(hostName, type, ttl,
+                                new String(data, StandardCharsets.US_ASCII)));
+                } catch (IOException ignored) {} // invalid address length
+            }
+        }
+
+        private int offset(int entry) {
+            return buffer.getInt(HEADER_SIZE + 4 * entry);
+        }
+
+        private int nameLength(int entry) {
+            return buffer.get(entry) & 0xFF;
+        }
+
+        private int typeCode(int entry) {
+            return buffer.getShort(entry + 1 + nameLength(entry) + 1) & 0xFFFF;
+        }
+
+        // @return the comparison of an entry with a name and kind, as sorted by OverrideIndexWriter
+        private int compare(int entry, byte[] name, int start, byte kind) {
+            int length = nameLength(entry);
+            int common = Math.min(length, name.length - start);
+            for (int i = 0; i < common; i++) {
+                int result = Integer.compare(buffer.get(entry + 1 + i) & 0xFF, name[start + i] & 0xFF);
+                if (result != 0) return result;
+            }
+            if (length != name.length - start)
+                return Integer.compare(length, name.length - start);
+            return Byte.compare(buffer.get(entry + 1 + length), kind);
+        }
+
+        private boolean sameKey(int entry, int other) {
+            int length = nameLength(entry);
+            if (length != nameLength(other)) return false;
+            for (int i = 0; i <= length; i++) // name, then kind
+                if (buffer.get(entry + 1 + i) != buffer.get(other + 1 + i)) return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class shares the cache of this resolver with other resolver instances (peers), e.g., the
+ * other instances of the same site. Records learned from DNS servers (delegations with their glue,
+ * and answers) are replicated to all peers shortly after they are learned, and a name that is not
+ * cached locally is asked to the peers before any query is sent upstream. Records are exchanged
+ * with their absolute expiration time, so a replicated record expires at the same time on every
+ * instance (the clocks of the instances are assumed to be synchronized).
+ * <p>
+ * Peers exchange UDP datagrams in a compact binary format. Each message starts with a version,
+ * a message type and a request ID, followed by a query (UPDATE messages have none) and a list of
+ * records. A query is a name and a type code. A record is a name, a type code, an expiration time
+ * (milliseconds since the epoch) and its data: raw address bytes for A and AAAA records, or a name.
+ * Names are sent as a length and ASCII bytes. A peer that does not answer a query is not asked
+ * again for a few seconds, so a peer that is down does not delay lookups.
+ * <p>
+ * The protocol is not authenticated: messages are only checked to come from the address of a
+ * peer, which is easily forged, so peers should only be used on a trusted network. To limit the
+ * damage of a forged message, answers are only accepted for a query in progress, from a peer it
+ * was sent to, and only their records for the name queried (or its CNAME chain) are kept. All
+ * records from peers expire at most MAX_TTL seconds after they are received, which also covers
+ * peers with a wrong clock.
+ */
+public class DNSPeerCache {
+
+    private static DNSPeerCache instance = new DNSPeerCache();
+
+    private static final byte VERSION = 1;
+    private static final byte UPDATE = 1, QUERY = 2, ANSWER = 3;
+    private static final int MAX_MESSAGE_SIZE = 1400;
+    private static final long FLUSH_INTERVAL = 50;    // ms
+    private static final long QUERY_TIMEOUT = 50;     // ms
+    private static final long SUSPEND_INTERVAL = 5000; // ms
+    private static final long MAX_TTL = 3600;          // seconds, the usual TTL of addresses
+
+    private static DNSCache cache = DNSCache.getInstance();
+    private static DNSMetrics metrics = DNSMetrics.getInstance();
+
+    private final Set<InetSocketAddress> peers = new CopyOnWriteArraySet<>();
+    private final BlockingQueue<ResourceRecord> outgoing = new LinkedBlockingQueue<>();
+    private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Long> suspendedUntil = new ConcurrentHashMap<>();
+    private volatile DatagramSocket socket;
+
+    /** Singleton retrieval method. Only one instance of the peer cache can be created. This method
+     * returns the single peer cache instance.
+     *
+     * @return Instance of the peer cache.
+     */
+    public static DNSPeerCache getInstance() {
+        return instance;
+    }
+
+    /** Starts exchanging records with peers, listening on a UDP port.
+     *
+     * @param address Local address to listen on (e.g., the loopback address for tests).
+     * @param port    Local port to listen on, or 0 for any free port.
+     * @return The port listened on.
+     * @throws IOException if the socket could not be opened.
+     */
+    public synchronized int start(InetAddress address, int port) throws IOException {
+        if (socket != null)
+            throw new IOException("Already listening on port " + socket.getLocalPort());
+        socket = new DatagramSocket(new InetSocketAddress(address, port));
+        DatagramSocket listening = socket;
+        startThread("peer-receiver", () -> receive(listening));
+        startThread("peer-sender", () -> send(listening));
+        return listening.getLocalPort();
+    }
+
+    /** Stops exchanging records with peers. */
+    public synchronized void stop() {
+        if (socket != null) socket.close();
+        socket = null;
+        outgoing.clear();
+    }
+
+    public boolean isEnabled() {
+        return socket != null && !peers.isEmpty();
+    }
+
+    public void addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+    }
+
+    public void removePeer(InetSocketAddress peer) {
+        peers.remove(peer);
+        suspendedUntil.remove(peer);
+    }
+
+    public Set<InetSocketAddress> getPeers() {
+        return Collections.unmodifiableSet(peers);
+    }
+
+    /** Queues a record learned from a DNS server, so it is replicated to all peers.
+     *
+     * @param record The record, as added to the cache.
+     */
+    public void publish(ResourceRecord record) {
+        if (isEnabled() && record.isStillValid() && record.getType() != RecordType.OTHER &&
+                record.getType() != RecordType.SOA)
+            outgoing.add(record);
+    }
+
+    /** Asks the peers for the records of a node, waiting briefly for their answers. Records
+     * received are added to the cache.
+     *
+     * @param node Host name and record type of the query.
+     * @return true if a peer had records for the node (or a CNAME record for the name).
+     */
+    public boolean query(DNSNode node) {
+        DatagramSocket current = socket;
+        if (current == null) return false;
+        long now = System.currentTimeMillis();
+        Set<InetSocketAddress> asked = new HashSet<>();
+        for (InetSocketAddress peer : peers)
+            if (suspendedUntil.getOrDefault(peer, 0L) <= now) asked.add(peer);
+        if (asked.isEmpty()) return false;
+
+        // Random IDs, so an answer cannot be forged without seeing the query
+        PendingQuery query = new PendingQuery(node, asked);
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt();
+        } while (pending.putIfAbsent(id, query) != null);
+        try {
+            ByteBuffer message = header(QUERY, id);
+            putName(message, node.getHostName());
+            message.putShort((short) node.getType().getCode());
+            message.putShort((short) 0);
+            message.flip();
+            for (InetSocketAddress peer : asked)
+                sendTo(current, message, peer);
+
+            boolean found = query.answered.get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (found) metrics.recordPeerHit(); else metrics.recordPeerMiss();
+            return found;
+        } catch (TimeoutException e) {
+            // Peers that did not answer are probably down
+            for (InetSocketAddress peer : query.unanswered())
+                suspendedUntil.put(peer, System.currentTimeMillis() + SUSPEND_INTERVAL);
+            metrics.recordPeerMiss();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    // Sends queued records to all peers, in batches of up to one datagram
+    private void send(DatagramSocket current) {
+        List<ResourceRecord> batch = new ArrayList<>();
+        while (!current.isClosed()) {
+            try {
+                ResourceRecord first = outgoing.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                // Wait a little for more records: a response usually brings several at once
+                Thread.sleep(FLUSH_INTERVAL);
+                outgoing.drainTo(batch);
+                for (ByteBuffer message : encodeRecords(UPDATE, 0, null, batch))
+                    for (InetSocketAddress peer : peers)
+                        sendTo(current, message, peer);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(DatagramSocket current) {
+        byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+        while (!current.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                current.receive(packet);
+                InetSocketAddress peer = (InetSocketAddress) packet.getSocketAddress();
+                if (!peers.contains(peer)) continue;
+                suspendedUntil.remove(peer);
+                handle(current, ByteBuffer.wrap(buffer, 0, packet.getLength()), peer);
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                // Closed, or a malformed message: ignore it
+            }
+        }
+    }
+
+    private void handle(DatagramSocket current, ByteBuffer message, InetSocketAddress peer)
+            throws IOException {
+        if (message.get() != VERSION) return;
+        byte type = message.get();
+        int id = message.getInt();
+        DNSNode question = null;
+        if (type != UPDATE) {
+            String name = getName(message);
+            question = new DNSNode(name, RecordType.getByCode(message.getShort() & 0xFFFF));
+        }
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int count = message.getShort() & 0xFFFF; count > 0; count--) {
+            ResourceRecord record = getRecord(message);
+            if (record != null && record.isStillValid()) records.add(record);
+        }
+
+        switch (type) {
+            case UPDATE:
+                for (ResourceRecord record : records)
+                    cache.addResult(record);
+                metrics.recordPeerRecords(records.size());
+                break;
+            case QUERY:
+                List<ResourceRecord> answer = new ArrayList<>(cache.getValidResults(question));
+                if (answer.isEmpty() && question.getType() != RecordType.CNAME)
+                    answer.addAll(cache.getValidResults(
+                            new DNSNode(question.getHostName(), RecordType.CNAME)));
+                List<ByteBuffer> messages = encodeRecords(ANSWER, id, question, answer);
+                sendTo(current, messages.get(0), peer); // a single datagram is enough for an answer
+                break;
+            case ANSWER:
+                PendingQuery query = pending.get(id);
+                if (query == null || !query.isAskedTo(peer))
+                    break; // not an answer to a query in progress
+                List<ResourceRecord> answered = DNSLookupService.answerRecords(query.question, records);
+                for (ResourceRecord record : answered)
+                    cache.addResult(record);
+                query.answer(peer, !answered.isEmpty());
+                break;
+            default:
+                break;
+        }
+    }
+
+    // @return the messages carrying all records, each no longer than one datagram
+    private static List<ByteBuffer> encodeRecords(byte type, int id, DNSNode question,
+                                                  List<ResourceRecord> records) {
+        List<ByteBuffer> messages = new ArrayList<>();
+        ByteBuffer message = null;
+        int countPosition = 0, count = 0;
+        for (int i = 0; i <= records.size(); i++) {
+            ResourceRecord record = i < records.size() ? records.get(i) : null;
+            if (message == null || record == null || message.remaining() < encodedLength(record)) {
+                if (message != null) {
+                    message.putShort(countPosition, (short) count);
+                    message.flip();
+                    messages.add(message);
+                }
+                if (record == null) break;
+                message = header(type, id);
+                if (question != null) {
+                    putName(message, question.getHostName());
+                    message.putShort((short) question.getType().getCode());
+                }
+                countPosition = message.position();
+                message.putShort((short) 0);
+                count = 0;
+            }
+            putRecord(message, record);
+            count++;
+        }
+        if (messages.isEmpty()) { // no records: a single empty message
+            message = header(type, id);
+            if (question != null) {
+                putName(message, question.getHostName());
+                message.putShort((short) question.getType().getCode());
+            }
+            message.putShort((short) 0);
+            message.flip();
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static ByteBuffer header(byte type, int id) {
+        ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        message.put(VERSION);
+        message.put(type);
+        message.putInt(id);
+        return message;
+    }
+
+    private static int encodedLength(ResourceRecord record) {
+        int data = record.getInetResult() != null ? record.getInetResult().getAddress().length :
+                record.getTextResult().length();
+        return 1 + record.getHostName().length() + 2 + 8 + 1 + data;
+    }
+
+    private static void putRecord(ByteBuffer message, ResourceRecord record) {
+        putName(message, record.getHostName());
+        message.putShort((short) record.getType().getCode());
+        message.putLong(record.getExpirationTime());
+        if (record.getInetResult() != null) {
+            byte[] address = record.getInetResult().getAddress();
+            message.put((byte) address.length);
+            message.put(address);
+        } else {
+            putName(message, record.getTextResult());
+        }
+    }
+
+    // @return the record read from the message, or null if its type is not supported
+    private static ResourceRecord getRecord(ByteBuffer message) throws UnknownHostException {
+        String name = getName(message);
+        RecordType type = RecordType.getByCode(message.getShort() & 0xFFFF);
+        // The expiration time is not trusted beyond MAX_TTL
+        long expiration = Math.min(message.getLong(), System.currentTimeMillis() + MAX_TTL * 1000);
+        if (type == RecordType.A || type == RecordType.AAAA) {
+            byte[] address = new byte[message.get() & 0xFF];
+            message.get(address);
+            return new ResourceRecord(name, type, 0, InetAddress.getByAddress(address)).expiringAt(expiration);
+        }
+        String data = getName(message);
+        if (type == RecordType.OTHER || type == RecordType.SOA) return null;
+        return new ResourceRecord(name, type, 0, data).expiringAt(expiration);
+    }
+
+    private static void putName(ByteBuffer message, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        message.put((byte) bytes.length);
+        message.put(bytes);
+    }
+
+    private static String getName(ByteBuffer message) {
+        byte[] bytes = new byte[message.get() & 0xFF];
+        message.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static void sendTo(DatagramSocket current, ByteBuffer message, InetSocketAddress peer) {
+        try {
+            current.send(new DatagramPacket(message.array(), message.limit(), peer));
+        } catch (IOException ignored) {} // the peer is down: it will catch up later
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** A query sent to all peers, answered by the first peer that has records, or unanswered once
+     * all peers replied without records.
+     */
+    private static class PendingQuery {
+        private final DNSNode question;
+        private final CompletableFuture<Boolean> answered = new CompletableFuture<>();
+        private final Set<InetSocketAddress> remaining = ConcurrentHashMap.newKeySet();
+
+        private PendingQuery(DNSNode question, Set<InetSocketAddress> peers) {
+            this.question = question;
+            remaining.addAll(peers);
+        }
+
+        // @return true if the query was sent to a peer that has not answered yet
+        private boolean isAskedTo(InetSocketAddress peer) {
+            return remaining.contains(peer);
+        }
+
+        private void answer(InetSocketAddress peer, boolean found) {
+            if (!remaining.remove(peer))
+                return;
+            if (found)
+                answered.complete(true);
+            else if (remaining.isEmpty())
+                answered.complete(false);
+        }
+
+        private Set<InetSocketAddress> unanswered() {
+            return remaining;
+        }
+    }
+}
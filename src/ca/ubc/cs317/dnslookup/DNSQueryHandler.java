@@ -8,39 +8,53 @@ import java.util.Set;
 import java.util.Map;
 import java.util.*;
 import java.nio.charset.*;
+import java.util.concurrent.TimeUnit;
 
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
-    private static DNSNode node;
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int SERVFAIL = 2, NOTIMP = 4, REFUSED = 5; // RCODEs of failing servers
+    private static int serverPort = DEFAULT_DNS_PORT;
+    private static DNSTraceRecorder tracer = DNSTraceRecorder.getInstance();
 
     private static final Random random = new Random();
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Sets up a socket for a single query and set the timeout to 5 seconds. Each query uses its
+     * own socket (and source port), so concurrent queries never receive each other's responses.
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
      */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    private static DatagramSocket openSocket() throws SocketException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(SOCKET_TIMEOUT);
+        return socket;
     }
 
     /**
-     * Closes the socket
+     * Computes the time to wait for a response: 5 seconds, or less if the deadline of the current
+     * resolution is closer.
+     *
+     * @return The timeout in milliseconds.
+     * @throws SocketTimeoutException if the deadline of the current resolution has passed.
      */
-    public static void closeSocket() {
-        socket.close();
+    private static int responseTimeout() throws SocketTimeoutException {
+        DNSResolution resolution = DNSResolution.current();
+        if (resolution == null)
+            return SOCKET_TIMEOUT;
+        long remaining = TimeUnit.NANOSECONDS.toMillis(resolution.remainingNanos());
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Lookup deadline exceeded");
+        return (int) Math.min(SOCKET_TIMEOUT, remaining);
     }
 
     /**
-     * Set verboseTracing to tracing
+     * Set the UDP port queries are sent to (53 unless testing against local servers)
      */
-    public static void setVerboseTracing(boolean tracing) {
-        verboseTracing = tracing;
+    public static void setServerPort(int port) {
+        serverPort = port;
     }
 
     /**
@@ -54,10 +68,76 @@ public class DNSQueryHandler {
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
                                                       DNSNode node) throws IOException {
+        short id = (short)random.nextInt(65535);
+        message = encodeQuery(id, node);
+
+        tracer.traceQuery(id, node, server);
+        // Send the query
+        DatagramPacket requestPacket = new DatagramPacket(message, message.length, server, serverPort);
+        byte[] response = new byte[1024];
+        DNSServerSelector selector = DNSServerSelector.getInstance();
+        DNSMetrics metrics = DNSMetrics.getInstance();
+        try (DatagramSocket socket = openSocket()) {
+            long sentTime = System.nanoTime();
+            try {
+                socket.send(requestPacket);
+            } catch (IOException e) {
+                // e.g. no route to this address family; other addresses will be preferred
+                selector.recordUnreachable(server);
+                throw e;
+            }
+
+            // Should receive query here
+            DatagramPacket responsePacket = new DatagramPacket(response, response.length);
+            int timeout = responseTimeout();
+            socket.setSoTimeout(timeout);
+            try {
+                socket.receive(responsePacket);
+            } catch (SocketTimeoutException e) {
+                selector.recordTimeout(server, timeout);
+                metrics.recordTimeout(server);
+                // If the query times out, re-send it one more time before failing, unless the
+                // lookup has run out of time
+                timeout = responseTimeout();
+                socket.setSoTimeout(timeout);
+                metrics.recordRetransmit();
+                tracer.traceQuery(id, node, server);
+                sentTime = System.nanoTime();
+                socket.send(requestPacket);
+                try {
+                    socket.receive(responsePacket);
+                } catch (SocketTimeoutException retryTimeout) {
+                    selector.recordTimeout(server, timeout);
+                    metrics.recordTimeout(server);
+                    throw retryTimeout;
+                }
+            }
+            long rtt = System.nanoTime() - sentTime;
+            selector.recordRtt(server, rtt / 1000000);
+            metrics.recordQuery(server, rtt);
+        }
+
+//         for (int i = 0; i < response.length; i++) {
+//             System.out.print(Integer.toHexString(response[i] & 0xFF) + " ");
+//         }
+//         System.out.println();
+
+
+        ByteBuffer responseMessage = ByteBuffer.wrap(response);
+        return new DNSServerResponse(responseMessage, id);
+    }
+
+    /**
+     * Encodes a query message, without sending it.
+     *
+     * @param id   Transaction ID of the query.
+     * @param node Host and record type to be used for search.
+     * @return The encoded query.
+     * @throws IOException if an IO Exception occurs
+     */
+    static byte[] encodeQuery(short id, DNSNode node) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         DataOutputStream dataStream = new DataOutputStream(outputStream);
-        DNSQueryHandler.node = node;
-        short id = (short)random.nextInt(65535);
         // HEADER
         // -----------------
         // ID
@@ -91,39 +171,7 @@ public class DNSQueryHandler {
         dataStream.writeShort(1);
 
         // Convert datastream to byte array
-        message = outputStream.toByteArray();
-
-        if (verboseTracing) {
-            System.out.print("\n\n");
-            System.out.println("Query ID     "+ (id & 0xFFFF) + " " + node.getHostName() + " " + node.getType() + " --> " + server.getHostAddress());
-        }
-        // Send the query
-        DatagramPacket requestPacket = new DatagramPacket(message, message.length, server, DEFAULT_DNS_PORT);
-        socket.send(requestPacket);
-
-        // Should receive query here
-        byte[] response = new byte[1024];
-        DatagramPacket responsePacket = new DatagramPacket(response, response.length);
-        try {
-            socket.receive(responsePacket);
-        } catch (SocketTimeoutException e) {
-            // If the query times out, re-send it one more time before failing    
-            if (verboseTracing) {
-                System.out.print("\n\n");
-                System.out.println("Query ID     "+ (id & 0xFFFF) + " " + node.getHostName() + " " + node.getType() + " --> " + server.getHostAddress());
-            }
-            socket.send(requestPacket);
-            socket.receive(responsePacket);
-        }
-
-//         for (int i = 0; i < response.length; i++) {
-//             System.out.print(Integer.toHexString(response[i] & 0xFF) + " ");
-//         }
-//         System.out.println();
-
-
-        ByteBuffer responseMessage = ByteBuffer.wrap(response);
-        return new DNSServerResponse(responseMessage, id);
+        return outputStream.toByteArray();
     }
 
     // Call this method when encountering a pointer in the response. It will dereference each nested
@@ -214,9 +262,10 @@ public class DNSQueryHandler {
 
             addr = InetAddress.getByAddress(ipAddr);
             ResourceRecord newRecord = new ResourceRecord(name, RecordType.getByCode(TYPE), TTL, addr);
-            verbosePrintResourceRecord(newRecord, TYPE);
+            tracer.traceRecord(newRecord, TYPE);
             return newRecord;
-        } else if (RecordType.getByCode(TYPE) == RecordType.CNAME || RecordType.getByCode(TYPE) == RecordType.NS) {
+        } else if (RecordType.getByCode(TYPE) == RecordType.CNAME || RecordType.getByCode(TYPE) == RecordType.NS ||
+                RecordType.getByCode(TYPE) == RecordType.PTR) {
             ArrayList<Byte> bytesArray = new ArrayList<>();
 
             for (int i = 0; i < RDLENGTH; i++) {
@@ -231,11 +280,11 @@ public class DNSQueryHandler {
             }
             textResult += convertBytesToFDQN(bytesArray);
             ResourceRecord newRecord = new ResourceRecord(name, RecordType.getByCode(TYPE), TTL, textResult);
-            verbosePrintResourceRecord(newRecord, TYPE);
+            tracer.traceRecord(newRecord, TYPE);
             return newRecord;
         } else {
             ResourceRecord newRecord = new ResourceRecord(name, RecordType.getByCode(TYPE), TTL, "----");
-            verbosePrintResourceRecord(newRecord, TYPE);
+            tracer.traceRecord(newRecord, TYPE);
             return newRecord;
         }
     }
@@ -255,15 +304,18 @@ public class DNSQueryHandler {
     }
 
     /**
-     * Decodes the DNS server response and caches it.
+     * Decodes the DNS server response. Records are not cached here: only the caller knows which
+     * of them the server may be trusted for.
      *
      * @param transactionID  Transaction ID of the current communication with the DNS server
      * @param responseBuffer DNS server's response
-     * @param cache          To store the decoded server's response
-     * @return A set of resource records corresponding to the name servers of the response.
+     * @return A set of resource records corresponding to all sections of the response.
+     * @throws IOException if the server could not answer (SERVFAIL, NOTIMP or REFUSED, e.g. from a
+     *                     lame server) or the response was truncated, so another server should be
+     *                     asked. A name error or an empty answer is returned as an empty set.
      */
-    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
-                                                             DNSCache cache) {
+    public static Set<ResourceRecord> decodeResponse(int transactionID, ByteBuffer responseBuffer)
+            throws IOException {
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(responseBuffer.array());
         DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream);
 
@@ -277,34 +329,40 @@ public class DNSQueryHandler {
         // Question Section
         short QTYPE, QCLASS;
 
-        try {
-            short responseID = dataInputStream.readShort();
+        // The header is always within the response buffer
+        short responseID = dataInputStream.readShort();
 
-            // transactionID and the ID from response must match or else we ignore this query
-            if ((short)transactionID != responseID) {
-                return allRecords;
-            }
+        // transactionID and the ID from response must match or else we ignore this query
+        if ((short)transactionID != responseID) {
+            return allRecords;
+        }
 
-            // next short contains all the flags and status codes
-            short secondHeaderRow = dataInputStream.readShort();
-            // check flags using bit shifting
-            QR = (secondHeaderRow & 0b1000000000000000) >>> 15;
+        // next short contains all the flags and status codes
+        short secondHeaderRow = dataInputStream.readShort();
+        // check flags using bit shifting
+        QR = (secondHeaderRow & 0b1000000000000000) >>> 15;
 
-            OPCode = (secondHeaderRow & 0b0111100000000000) >>> 11;
+        OPCode = (secondHeaderRow & 0b0111100000000000) >>> 11;
 
-            // AA should be 1 to be authorative
-            AA = (secondHeaderRow & 0b0000010000000000) >>> 10; // need to report
-            TC = (secondHeaderRow & 0b0000001000000000) >>> 9;
+        // AA should be 1 to be authorative
+        AA = (secondHeaderRow & 0b0000010000000000) >>> 10; // need to report
+        TC = (secondHeaderRow & 0b0000001000000000) >>> 9;
 
-            RD = (secondHeaderRow & 0b0000000100000000) >>> 8;
-            RA = (secondHeaderRow & 0b0000000010000000) >>> 7;
+        RD = (secondHeaderRow & 0b0000000100000000) >>> 8;
+        RA = (secondHeaderRow & 0b0000000010000000) >>> 7;
 
-            Z = (secondHeaderRow & 0b0000000001110000) >>> 4;
-            RCODE = secondHeaderRow & 0b0000000000001111;
-            if (QR != 1 || OPCode != 0 || TC != 0 || Z != 0 || RCODE != 0) {
-                DNSLookupService.answerReceived = true;
-                return allRecords;
-            }
+        Z = (secondHeaderRow & 0b0000000001110000) >>> 4;
+        RCODE = secondHeaderRow & 0b0000000000001111;
+        DNSMetrics.getInstance().recordResponse(RCODE, TC == 1);
+        // Truncated responses are not retried over TCP
+        if (QR == 1 && (TC != 0 || RCODE == SERVFAIL || RCODE == NOTIMP || RCODE == REFUSED)) {
+            throw new IOException(TC != 0 ? "Truncated response" : "Server failure (RCODE " + RCODE + ")");
+        }
+        if (QR != 1 || OPCode != 0 || Z != 0 || RCODE != 0) {
+            return allRecords;
+        }
+
+        try {
             // next rows of the DNS header
             QDCOUNT = dataInputStream.readShort();
             ANCOUNT = dataInputStream.readShort();
@@ -321,23 +379,17 @@ public class DNSQueryHandler {
             // RR, and storing it into allRecords at the end.
 
             // Create all ANSWER RR's
-            if (verboseTracing) {
-                System.out.println("Response ID: " + (responseID & 0xFFFF) + " Authoritative = " + ((AA==1)?"true":"false"));
-                System.out.println("  Answers (" + ANCOUNT + ")");
-            }
-            handleAllRecords(ANCOUNT, allRecords, AA, responseBuffer, dataInputStream, cache, "answer");
+            tracer.traceResponse(responseID, AA == 1);
+            tracer.traceSection(DNSTraceRecorder.ANSWERS, ANCOUNT);
+            handleAllRecords(ANCOUNT, allRecords, responseBuffer, dataInputStream);
 
             // Create all AUTHORITY RR's
-            if (verboseTracing) {
-                System.out.println("  Nameservers (" + NSCOUNT + ")");
-            }
-            handleAllRecords(NSCOUNT, allRecords, AA, responseBuffer, dataInputStream, cache, "authority");
+            tracer.traceSection(DNSTraceRecorder.NAMESERVERS, NSCOUNT);
+            handleAllRecords(NSCOUNT, allRecords, responseBuffer, dataInputStream);
 
             // Create all ADDITIONAL RR's
-            if (verboseTracing) {
-                System.out.println("  Additional Information (" + ARCOUNT + ")");
-            }
-            handleAllRecords(ARCOUNT, allRecords, AA, responseBuffer, dataInputStream, cache, "additional");
+            tracer.traceSection(DNSTraceRecorder.ADDITIONAL, ARCOUNT);
+            handleAllRecords(ARCOUNT, allRecords, responseBuffer, dataInputStream);
 
         } catch (IOException e) {
             // TODO
@@ -346,67 +398,12 @@ public class DNSQueryHandler {
         return allRecords;
     }
 
-    private static void resolveCNAME(DNSCache cache, Set<ResourceRecord> allRecords) {
-        long ttl = 0;
-        RecordType rt = null;
-        String text = "";
-        boolean domainIsPresent = false;
-        for (ResourceRecord rr: allRecords) {
-            if (rr.getType() == RecordType.A || rr.getType() == RecordType.AAAA) {
-                ttl = rr.getTTL();
-                rt = rr.getType();
-                text = rr.getTextResult();
-                domainIsPresent = true;
-            }
-        }
-        Set<ResourceRecord> tmpSet = new HashSet<>();
-        if (domainIsPresent) {
-            for (ResourceRecord rr: allRecords) {
-                if (rr.getType() == RecordType.CNAME || rr.getType() == RecordType.NS) {
-                    ResourceRecord record = new ResourceRecord(rr.getHostName(), rt, ttl, text);
-                    tmpSet.add(record);
-                    cache.addResult(record);
-                }
-            }
-        }
-        allRecords.addAll(tmpSet);
-    }
-
     private static void handleAllRecords(
-        int count, Set<ResourceRecord> allRecords, int isAuthoritative,
-        ByteBuffer responseBuffer, DataInputStream dataInputStream, DNSCache cache, String recordType) throws IOException{
+        int count, Set<ResourceRecord> allRecords,
+        ByteBuffer responseBuffer, DataInputStream dataInputStream) throws IOException{
         for (int i = 0; i < count; i++) {
             ResourceRecord record = createResourceRecord(dataInputStream, responseBuffer);
-            if (recordType.equals("answer") || recordType.equals("additional")) {
-                cache.addResult(record);
-            }
             allRecords.add(record);
-            if ((record.getType() == RecordType.SOA) || isAuthoritative == 1 && recordType.equals("answer") &&
-                    (record.getType() == RecordType.A || record.getType() == RecordType.AAAA)) {
-                // Return a flag to DNSLookup to signal that the lookup should stop since answer has been found
-                DNSLookupService.answerReceived = true;
-            } else if (record.getNode().equals(DNSQueryHandler.node) &&
-                    (record.getType() == RecordType.A || record.getType() == RecordType.AAAA)) {
-                DNSLookupService.cnameResponseReceived = true;
-                DNSLookupService.cnameServer = record.getInetResult();
-            }
-        }
-        resolveCNAME(cache, allRecords);
-    }
-
-    /**
-     * Formats and prints record details (for when trace is on)
-     *
-     * @param record The record to be printed
-     * @param rtype  The type of the record to be printed
-     */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing) {
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
         }
     }
 }
-
@@ -0,0 +1,249 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** This class schedules queries sent to upstream servers, so that no server is flooded when many
+ * lookups run concurrently. Each server has a cap on the number of queries in flight and a token
+ * bucket limiting its query rate. A query may be sent to any of several equivalent servers (e.g.,
+ * the name servers of a zone, in order of preference): if the preferred server is saturated, the
+ * query is redirected to the next one with capacity, and if all of them are saturated, it waits.
+ * Waiting queries are served round-robin across client resolutions, so a resolution with many
+ * queries cannot starve the others.
+ * <p>
+ * Resolutions are served in priority lanes: interactive queries are always served before batch
+ * ones. A batch query is never sent to a server an interactive query is waiting for, and batch
+ * queries may only use part of the in-flight cap of each server (all but a quarter of it, and at
+ * least one slot less), so interactive queries find a free slot even while a large batch job is
+ * running. With a cap of one query, no slot can be reserved.
+ */
+public class DNSQueryScheduler {
+
+    private static final long QUEUE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final DNSResolution.Priority[] LANES = DNSResolution.Priority.values();
+
+    private static DNSQueryScheduler instance = new DNSQueryScheduler();
+
+    private volatile int maxInFlight = 16;
+    private volatile double rateLimit = 200; // queries per second, per server
+    private volatile double burst = 20;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<InetAddress, ServerState> servers = new HashMap<>();
+    private final Map<Long, Deque<Waiter>> waiting = new HashMap<>();
+    private final List<Deque<Long>> turns = new ArrayList<>();
+
+    private DNSQueryScheduler() {
+        for (int lane = 0; lane < LANES.length; lane++)
+            turns.add(new ArrayDeque<>());
+    }
+
+    /** Singleton retrieval method. Only one instance of the query scheduler can be created. This
+     * method returns the single query scheduler instance.
+     *
+     * @return Instance of the query scheduler.
+     */
+    public static DNSQueryScheduler getInstance() {
+        return instance;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /** Sets the maximum number of queries in flight to each server. Less urgent lanes are kept at
+     * least one query below the cap, unless it is 1.
+     *
+     * @param queries Maximum number of queries sent to a server and not yet answered.
+     */
+    public void setMaxInFlight(int queries) {
+        maxInFlight = Math.max(1, queries);
+        signalChange();
+    }
+
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /** Sets the rate at which queries may be sent to each server. Short bursts above this rate
+     * are allowed, up to a tenth of a second worth of queries (at least one).
+     *
+     * @param queriesPerSecond Sustained number of queries per second for each server.
+     */
+    public void setRateLimit(double queriesPerSecond) {
+        rateLimit = Math.max(1, queriesPerSecond);
+        burst = Math.max(1, rateLimit / 10);
+        signalChange();
+    }
+
+    /** Obtains permission to send a query to one of several servers. The first server (in the
+     * order given) that is below its in-flight cap and has a token available is selected. If none
+     * is available, the calling thread waits its turn, but never past the deadline of the
+     * resolution. The permission must be returned with release once the query is answered or has
+     * timed out.
+     *
+     * @param candidates Equivalent servers, in order of preference.
+     * @param resolution Client resolution the query is sent for, or null.
+     * @return The server to be queried, or null if no server became available in time.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public InetAddress acquire(List<InetAddress> candidates, DNSResolution resolution) throws InterruptedException {
+        if (candidates.isEmpty()) return null;
+        long client = resolution == null ? 0 : resolution.getId();
+        int lane = resolution == null ? 0 : resolution.getPriority().ordinal();
+        Waiter waiter = new Waiter(candidates, lane);
+        long deadline = System.nanoTime() +
+                (resolution == null ? QUEUE_TIMEOUT : Math.min(QUEUE_TIMEOUT, resolution.remainingNanos()));
+
+        lock.lock();
+        try {
+            waiting.computeIfAbsent(client, c -> {
+                turns.get(lane).addLast(c);
+                return new ArrayDeque<>();
+            }).addLast(waiter);
+            while (true) {
+                long nextToken = grant();
+                if (waiter.granted != null) {
+                    if (!waiter.granted.equals(candidates.get(0)))
+                        DNSMetrics.getInstance().recordRedirect();
+                    return waiter.granted;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    remove(client, waiter);
+                    DNSMetrics.getInstance().recordQueueTimeout();
+                    return null;
+                }
+                changed.awaitNanos(Math.min(remaining, nextToken));
+            }
+        } catch (InterruptedException e) {
+            if (waiter.granted != null)
+                release(waiter.granted);
+            else
+                remove(client, waiter);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the permission obtained with acquire, once the query is complete.
+     *
+     * @param server The server returned by acquire.
+     */
+    public void release(InetAddress server) {
+        lock.lock();
+        try {
+            servers.get(server).inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Grants servers to as many waiting queries as possible, lane by lane, taking client
+    // resolutions in turn within a lane. Must be called with the lock held.
+    // @return the time until the next token, in nanoseconds
+    private long grant() {
+        long now = System.nanoTime();
+        long nextToken = QUEUE_TIMEOUT;
+        boolean granted = false;
+        // Servers that queries of a more urgent lane are still waiting for
+        Set<InetAddress> reserved = new HashSet<>();
+        for (int lane = 0; lane < LANES.length; lane++) {
+            Deque<Long> clients = turns.get(lane);
+            // Less urgent lanes leave a quarter of the in-flight cap (at least one slot) to the first lane
+            int cap = lane == 0 ? maxInFlight : Math.max(1, maxInFlight - Math.max(1, maxInFlight / 4));
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (int i = clients.size(); i > 0; i--) {
+                    long client = clients.pollFirst();
+                    Deque<Waiter> queue = waiting.get(client);
+                    Waiter served = null;
+                    for (Waiter waiter : queue) {
+                        for (InetAddress server : waiter.candidates) {
+                            if (reserved.contains(server)) continue;
+                            ServerState state = servers.computeIfAbsent(server, s -> new ServerState(burst, now));
+                            state.refill(now, rateLimit, burst);
+                            if (state.inFlight >= cap) continue;
+                            if (state.tokens < 1) {
+                                nextToken = Math.min(nextToken, (long) ((1 - state.tokens) * 1e9 / rateLimit) + 1);
+                                continue;
+                            }
+                            state.inFlight++;
+                            state.tokens--;
+                            waiter.granted = server;
+                            served = waiter;
+                            break;
+                        }
+                        if (served != null) break;
+                    }
+                    if (served != null) {
+                        queue.remove(served);
+                        granted = progress = true;
+                    }
+                    if (queue.isEmpty())
+                        waiting.remove(client);
+                    else
+                        clients.addLast(client);
+                }
+            }
+            for (long client : clients)
+                for (Waiter waiter : waiting.get(client))
+                    reserved.addAll(waiter.candidates);
+        }
+        if (granted) changed.signalAll();
+        return nextToken;
+    }
+
+    private void remove(long client, Waiter waiter) {
+        Deque<Waiter> queue = waiting.get(client);
+        if (queue == null) return;
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+            waiting.remove(client);
+            turns.get(waiter.lane).remove(client);
+        }
+    }
+
+    private void signalChange() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Waiter {
+        private final List<InetAddress> candidates;
+        private final int lane;
+        private InetAddress granted;
+
+        private Waiter(List<InetAddress> candidates, int lane) {
+            this.candidates = candidates;
+            this.lane = lane;
+        }
+    }
+
+    private static class ServerState {
+        private int inFlight;
+        private double tokens;
+        private long lastRefill;
+
+        private ServerState(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        private void refill(long now, double rate, double burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+    }
+}
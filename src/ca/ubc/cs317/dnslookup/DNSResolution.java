@@ -0,0 +1,102 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A client resolution, i.e., one lookup requested by a user of the service, including all the
+ * queries sent on its behalf (for CNAME targets and name server addresses, possibly in other
+ * threads). The resolution running in a thread is available through current(), and is carried
+ * over to other threads with resume().
+ * <p>
+ * Each resolution has a priority and a deadline. Interactive resolutions are served before batch
+ * ones when upstream servers are saturated, and once the deadline has passed, no further query is
+ * sent on its behalf.
+ */
+public class DNSResolution {
+
+    /** Priority lanes, from the most to the least urgent. */
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    /** Time budget of a resolution when none is given, in milliseconds. */
+    public static final long DEFAULT_BUDGET = 15000;
+
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final ThreadLocal<DNSResolution> current = new ThreadLocal<>();
+
+    private final long id;
+    private final Priority priority;
+    private final long deadline;
+
+    private DNSResolution(Priority priority, long budget) {
+        this.id = nextId.incrementAndGet();
+        this.priority = priority;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    /** Starts a new resolution in the calling thread.
+     *
+     * @param priority Priority of the queries sent for the resolution.
+     * @param budget   Time allowed for the resolution, in milliseconds.
+     * @return The new resolution.
+     */
+    public static DNSResolution begin(Priority priority, long budget) {
+        DNSResolution resolution = new DNSResolution(priority, budget);
+        current.set(resolution);
+        return resolution;
+    }
+
+    /** Returns the resolution running in the calling thread.
+     *
+     * @return The current resolution, or null if there is none.
+     */
+    public static DNSResolution current() {
+        return current.get();
+    }
+
+    /** Continues a resolution in the calling thread, e.g., for a lookup run concurrently.
+     *
+     * @param resolution The resolution, or null to end the resolution of this thread.
+     */
+    public static void resume(DNSResolution resolution) {
+        if (resolution == null)
+            current.remove();
+        else
+            current.set(resolution);
+    }
+
+    /** Ends the resolution running in the calling thread. */
+    public static void end() {
+        current.remove();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /** Returns the time left before the deadline of this resolution.
+     *
+     * @return The remaining time in nanoseconds, or 0 if the resolution has expired.
+     */
+    public long remainingNanos() {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() == 0;
+    }
+
+    /** Checks if the resolution running in the calling thread (if any) has expired.
+     *
+     * @return true if no further query should be sent for the current resolution.
+     */
+    public static boolean currentExpired() {
+        DNSResolution resolution = current.get();
+        return resolution != null && resolution.isExpired();
+    }
+}
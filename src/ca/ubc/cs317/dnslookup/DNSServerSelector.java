@@ -0,0 +1,160 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** This class selects which address of a name server should be queried. It keeps a smoothed
+ * round-trip time (RTT) for every server address queried, and uses it to choose between the IPv4
+ * (A) and IPv6 (AAAA) addresses of a name server. A family that was never measured for a name
+ * server is probed first, so both families get an RTT. The address family chosen for a name
+ * server is then kept for a short period, so a server is not flipped between families on every
+ * query, unless the chosen address stops answering.
+ */
+public class DNSServerSelector {
+
+    private static DNSServerSelector instance = new DNSServerSelector();
+
+    private static final long INITIAL_RTT = 50;         // ms, estimate for servers never queried
+    private static final long UNREACHABLE_RTT = 60000;  // ms, for addresses that could not be used
+    private static final long FAMILY_CHOICE_TTL = 60000; // ms
+
+    private final Map<InetAddress, Long> smoothedRtt = new ConcurrentHashMap<>();
+    private final Map<String, FamilyChoice> familyChoices = new ConcurrentHashMap<>();
+    private volatile boolean ipv6Enabled = hasGlobalIPv6Address();
+
+    /** Singleton retrieval method. Only one instance of the server selector can be created. This
+     * method returns the single server selector instance.
+     *
+     * @return Instance of the server selector.
+     */
+    public static DNSServerSelector getInstance() {
+        return instance;
+    }
+
+    public boolean isIPv6Enabled() {
+        return ipv6Enabled;
+    }
+
+    /** Enables or disables IPv6 transport to name servers. By default, IPv6 is enabled if this
+     * host has a global IPv6 address.
+     *
+     * @param enabled true if IPv6 addresses may be selected, false otherwise.
+     */
+    public void setIPv6Enabled(boolean enabled) {
+        ipv6Enabled = enabled;
+        familyChoices.clear();
+    }
+
+    /** Records the round-trip time of a query that was answered by a server.
+     *
+     * @param server Address of the server that answered.
+     * @param rtt    Time between sending the query and receiving the response, in milliseconds.
+     */
+    public void recordRtt(InetAddress server, long rtt) {
+        smoothedRtt.merge(server, rtt, (previous, sample) -> (7 * previous + sample) / 8);
+    }
+
+    /** Records a query that timed out. The estimate of the server is doubled, so that other
+     * servers (or the other address family) are preferred until it answers again.
+     *
+     * @param server  Address of the server that did not answer.
+     * @param timeout Time waited for the response, in milliseconds.
+     */
+    public void recordTimeout(InetAddress server, long timeout) {
+        smoothedRtt.merge(server, timeout, (previous, sample) -> Math.max(2 * previous, sample));
+        forgetChoices(server);
+    }
+
+    /** Records a server address that could not be used at all (e.g., network unreachable).
+     *
+     * @param server Address of the server that could not be reached.
+     */
+    public void recordUnreachable(InetAddress server) {
+        smoothedRtt.put(server, UNREACHABLE_RTT);
+        forgetChoices(server);
+    }
+
+    /** Returns the current RTT estimate for a server address.
+     *
+     * @param server Address of the server.
+     * @return The smoothed RTT in milliseconds, or an initial estimate if it was never queried.
+     */
+    public long getSmoothedRtt(InetAddress server) {
+        return smoothedRtt.getOrDefault(server, INITIAL_RTT);
+    }
+
+    /** Selects the address to be used to query a name server. If the addresses of one family
+     * were never queried, that family is probed. Otherwise the address family with the best RTT
+     * is chosen and kept for the name server for a short period, then the address with the best
+     * RTT within that family is returned.
+     *
+     * @param nameServer Host name of the name server.
+     * @param addresses  Known IPv4 and IPv6 addresses of the name server.
+     * @return The selected address, or null if no usable address is known.
+     */
+    public InetAddress selectAddress(String nameServer, Collection<InetAddress> addresses) {
+        InetAddress best4 = null, best6 = null;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                if (ipv6Enabled && (best6 == null || getSmoothedRtt(address) < getSmoothedRtt(best6)))
+                    best6 = address;
+            } else if (best4 == null || getSmoothedRtt(address) < getSmoothedRtt(best4)) {
+                best4 = address;
+            }
+        }
+        if (best4 == null || best6 == null)
+            return best4 != null ? best4 : best6;
+
+        // Probe a family never measured; the choice is only kept once both have an RTT
+        boolean measured4 = smoothedRtt.containsKey(best4), measured6 = smoothedRtt.containsKey(best6);
+        if (!measured4)
+            return best4;
+        if (!measured6)
+            return best6;
+
+        FamilyChoice choice = familyChoices.get(nameServer);
+        if (choice == null || choice.expiration < System.currentTimeMillis()) {
+            InetAddress selected = getSmoothedRtt(best6) < getSmoothedRtt(best4) ? best6 : best4;
+            choice = new FamilyChoice(selected, System.currentTimeMillis() + FAMILY_CHOICE_TTL);
+            familyChoices.put(nameServer, choice);
+        }
+        InetAddress selected = choice.address instanceof Inet6Address ? best6 : best4;
+        if (!selected.equals(choice.address))
+            familyChoices.put(nameServer, new FamilyChoice(selected, choice.expiration));
+        return selected;
+    }
+
+    // Forgets the family chosen for the name servers that were using an address, so that the
+    // other family is considered again right away
+    private void forgetChoices(InetAddress server) {
+        familyChoices.values().removeIf(choice -> choice.address.equals(server));
+    }
+
+    // @return true if any interface of this host has a global (routable) IPv6 address
+    private static boolean hasGlobalIPv6Address() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) continue;
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet6Address && !address.isLinkLocalAddress() &&
+                            !address.isSiteLocalAddress() && !address.isLoopbackAddress())
+                        return true;
+                }
+            }
+        } catch (SocketException ignored) {}
+        return false;
+    }
+
+    private static class FamilyChoice {
+        private final InetAddress address; // address last selected in the chosen family
+        private final long expiration;
+
+        private FamilyChoice(InetAddress address, long expiration) {
+            this.address = address;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** This class records traces of individual lookups (queries sent, responses and their records).
+ * Only sampled lookups are traced: every lookup, one in N lookups, or all lookups for specific
+ * host names. Events are stored in binary form in a preallocated ring buffer, and are only
+ * formatted when they are drained, either by a background thread (when tracing to a file) or at
+ * the end of each lookup (when tracing to the console). If the ring buffer is full, events are
+ * dropped rather than slowing down lookups.
+ */
+public class DNSTraceRecorder {
+
+    private static DNSTraceRecorder instance = new DNSTraceRecorder(1 << 14);
+
+    // Event types
+    private static final int QUERY = 1;     // refs: node, server; values: query ID
+    private static final int RESPONSE = 2;  // values: response ID, authoritative (0/1)
+    private static final int SECTION = 3;   // values: section, record count
+    private static final int RECORD = 4;    // refs: record; values: TTL, type code
+    private static final int CACHED = 5;    // refs: node; values: record count
+
+    public static final int ANSWERS = 0, NAMESERVERS = 1, ADDITIONAL = 2;
+    private static final String[] SECTION_NAMES = {"Answers", "Nameservers", "Additional Information"};
+
+    private static final long DRAIN_INTERVAL = 20000000; // ns
+
+    private final int mask;
+    private final int[] types;
+    private final long[] traces;
+    private final long[] values1;
+    private final long[] values2;
+    private final Object[] refs1;
+    private final Object[] refs2;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+    private final LongAdder dropped = new LongAdder();
+
+    private final ThreadLocal<long[]> currentTrace = ThreadLocal.withInitial(() -> new long[1]);
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong nextTraceId = new AtomicLong();
+    private volatile int sampleEvery = 0;
+    private final Set<String> tracedNames = ConcurrentHashMap.newKeySet();
+
+    private volatile PrintStream output = System.out;
+    private volatile boolean console = true;
+    private Thread drainer; // guarded by this
+
+    /** Creates a recorder with a ring buffer of a fixed number of events.
+     *
+     * @param capacity Number of events in the ring buffer, rounded up to a power of two.
+     */
+    public DNSTraceRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        types = new int[size];
+        traces = new long[size];
+        values1 = new long[size];
+        values2 = new long[size];
+        refs1 = new Object[size];
+        refs2 = new Object[size];
+        published = new AtomicLongArray(size);
+    }
+
+    /** Singleton retrieval method. Only one instance of the trace recorder can be created. This
+     * method returns the single trace recorder instance.
+     *
+     * @return Instance of the trace recorder.
+     */
+    public static DNSTraceRecorder getInstance() {
+        return instance;
+    }
+
+    /** Traces every lookup (the equivalent of the original "trace on"), or none. Host names
+     * selected with traceName are not affected.
+     *
+     * @param tracing true to trace every lookup, false to trace no sampled lookups.
+     */
+    public void setTraceAll(boolean tracing) {
+        sampleEvery = tracing ? 1 : 0;
+        if (tracing) resumeDrainer();
+    }
+
+    /** Traces one lookup in every N lookups.
+     *
+     * @param every Sampling interval N, or 0 to stop sampling.
+     */
+    public void setSampling(int every) {
+        sampleEvery = Math.max(0, every);
+        if (every > 0) resumeDrainer();
+    }
+
+    public int getSampling() {
+        return sampleEvery;
+    }
+
+    /** Traces all lookups for a specific host name, regardless of sampling.
+     *
+     * @param hostName Host name to be traced.
+     */
+    public void traceName(String hostName) {
+        tracedNames.add(hostName.toLowerCase());
+        resumeDrainer();
+    }
+
+    public void clearTracedNames() {
+        tracedNames.clear();
+    }
+
+    /** Stops tracing lookups, both sampled ones and those of host names selected with traceName.
+     * Events recorded so far are written out, and the background thread writing to a file (if
+     * any) is stopped until tracing is turned on again.
+     */
+    public void stopTracing() {
+        sampleEvery = 0;
+        tracedNames.clear();
+        stopDrainer();
+        drain();
+    }
+
+    /** Returns true if some lookups may be traced, i.e., lookups are sampled or some host names
+     * are traced.
+     *
+     * @return false if no lookup will be traced.
+     */
+    public boolean isActive() {
+        return sampleEvery > 0 || !tracedNames.isEmpty();
+    }
+
+    /** Sends traces to a file, where they are appended asynchronously by a background thread.
+     * Each line is prefixed with the ID of the lookup it belongs to. Events recorded before the
+     * call are written to the previous output.
+     *
+     * @param file Path of the file.
+     * @throws IOException if the file could not be opened.
+     */
+    public void setOutputFile(String file) throws IOException {
+        PrintStream next = new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true)), false);
+        stopDrainer();
+        synchronized (this) {
+            drain();
+            PrintStream previous = output;
+            output = next;
+            console = false;
+            if (previous != System.out) previous.close();
+            if (isActive()) startDrainer();
+        }
+    }
+
+    /** Sends traces to the standard output, where they are printed at the end of each lookup. */
+    public void setOutputConsole() {
+        stopDrainer();
+        synchronized (this) {
+            drain();
+            if (output != System.out) output.close();
+            output = System.out;
+            console = true;
+        }
+    }
+
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    /** Starts a lookup, deciding if it is traced. The decision applies to the calling thread until
+     * endLookup is called.
+     *
+     * @param node Host name and record type of the lookup.
+     * @return The ID of the trace, or 0 if the lookup is not traced.
+     */
+    public long beginLookup(DNSNode node) {
+        int every = sampleEvery;
+        long trace = 0;
+        if ((every > 0 && lookups.getAndIncrement() % every == 0) ||
+                (!tracedNames.isEmpty() && tracedNames.contains(node.getHostName().toLowerCase())))
+            trace = nextTraceId.incrementAndGet();
+        currentTrace.get()[0] = trace;
+        return trace;
+    }
+
+    /** Ends the lookup started with beginLookup. When tracing to the console, its events are
+     * printed before this method returns.
+     *
+     * @param trace The ID returned by beginLookup.
+     */
+    public void endLookup(long trace) {
+        currentTrace.get()[0] = 0;
+        if (trace != 0 && console)
+            drain();
+    }
+
+    /** Returns the trace of the lookup running in this thread, so it can be continued in another
+     * thread with resume.
+     *
+     * @return The ID of the trace, or 0 if the lookup is not traced.
+     */
+    public long currentTrace() {
+        return currentTrace.get()[0];
+    }
+
+    /** Continues a trace in the calling thread, e.g., for part of a lookup run concurrently.
+     *
+     * @param trace The ID of the trace, or 0 to stop tracing in this thread.
+     */
+    public void resume(long trace) {
+        currentTrace.get()[0] = trace;
+    }
+
+    public boolean isTracing() {
+        return currentTrace.get()[0] != 0;
+    }
+
+    public void traceQuery(int queryID, DNSNode node, InetAddress server) {
+        append(QUERY, queryID, 0, node, server);
+    }
+
+    public void traceResponse(int responseID, boolean authoritative) {
+        append(RESPONSE, responseID, authoritative ? 1 : 0, null, null);
+    }
+
+    public void traceSection(int section, int count) {
+        append(SECTION, section, count, null, null);
+    }
+
+    /** Records a name answered from the cache during a traced lookup, with its records.
+     *
+     * @param node    Host name and record type found in the cache.
+     * @param records The cached records.
+     */
+    public void traceCached(DNSNode node, Set<ResourceRecord> records) {
+        if (!isTracing()) return;
+        append(CACHED, records.size(), 0, node, null);
+        for (ResourceRecord record : records)
+            append(RECORD, record.getTTL(), record.getType().getCode(), record, null);
+    }
+
+    public void traceRecord(ResourceRecord record, int typeCode) {
+        if (!isTracing()) return;
+        append(RECORD, record.getTTL(), typeCode, record, null);
+    }
+
+    private void append(int type, long value1, long value2, Object ref1, Object ref2) {
+        long trace = currentTrace.get()[0];
+        if (trace == 0) return;
+
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        types[slot] = type;
+        traces[slot] = trace;
+        values1[slot] = value1;
+        values2[slot] = value2;
+        refs1[slot] = ref1;
+        refs2[slot] = ref2;
+        published.lazySet(slot, sequence + 1);
+    }
+
+    /** Formats and prints all events recorded so far. */
+    public synchronized void drain() {
+        PrintStream out = output;
+        long sequence = tail;
+        for (; ; sequence++) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence + 1) break;
+            format(out, traces[slot], types[slot], values1[slot], values2[slot], refs1[slot], refs2[slot]);
+            refs1[slot] = refs2[slot] = null;
+            tail = sequence + 1;
+        }
+        out.flush();
+    }
+
+    private void format(PrintStream out, long trace, int type, long value1, long value2,
+                        Object ref1, Object ref2) {
+        String prefix = console ? "" : "[" + trace + "] ";
+        switch (type) {
+            case QUERY:
+                DNSNode node = (DNSNode) ref1;
+                if (console) out.print("\n\n");
+                out.println(prefix + "Query ID     " + (value1 & 0xFFFF) + " " + node.getHostName() + " " +
+                        node.getType() + " --> " + ((InetAddress) ref2).getHostAddress());
+                break;
+            case RESPONSE:
+                out.println(prefix + "Response ID: " + (value1 & 0xFFFF) + " Authoritative = " + (value2 == 1));
+                break;
+            case SECTION:
+                out.println(prefix + "  " + SECTION_NAMES[(int) value1] + " (" + value2 + ")");
+                break;
+            case CACHED:
+                DNSNode cached = (DNSNode) ref1;
+                if (console) out.print("\n\n");
+                out.println(prefix + "Cached       " + cached.getHostName() + " " + cached.getType() +
+                        " (" + value1 + ")");
+                break;
+            case RECORD:
+                ResourceRecord record = (ResourceRecord) ref1;
+                out.format("%s       %-30s %-10d %-4s %s\n", prefix, record.getHostName(), value1,
+                        record.getType() == RecordType.OTHER ? value2 : record.getType(),
+                        record.getTextResult());
+                break;
+        }
+    }
+
+    // Starts the background thread again when tracing to a file is turned back on
+    private synchronized void resumeDrainer() {
+        if (!console) startDrainer();
+    }
+
+    // Must be called with the lock held
+    private void startDrainer() {
+        if (drainer != null) return;
+        drainer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (head.get() != tail)
+                    drain();
+                LockSupport.parkNanos(DRAIN_INTERVAL);
+            }
+        }, "trace-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    // Stops the background thread and waits for it to end. Must be called without the lock, which
+    // the thread needs to finish its last drain.
+    private void stopDrainer() {
+        Thread stopping;
+        synchronized (this) {
+            stopping = drainer;
+            drainer = null;
+        }
+        if (stopping == null) return;
+        stopping.interrupt();
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
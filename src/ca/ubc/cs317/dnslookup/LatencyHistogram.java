@@ -0,0 +1,84 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free histogram of latencies. Samples are counted in buckets whose bounds are powers of
+ * two nanoseconds, so recording a sample is a single increment on a striped counter, and
+ * percentiles are reported as the upper bound of the bucket they fall in (i.e., within a factor
+ * of two of the actual value).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /** Records one sample.
+     *
+     * @param nanos Latency in nanoseconds. Negative values are counted as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        // bucket i holds samples between 2^i and 2^(i+1)-1 (and 0 in bucket 0)
+        buckets[Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        total.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Returns the average of all samples recorded.
+     *
+     * @return The mean latency in nanoseconds, or 0 if no sample was recorded.
+     */
+    public long getMean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : total.sum() / samples;
+    }
+
+    /** Returns an estimate of a percentile of the samples recorded. Since samples recorded while
+     * this method runs may or may not be considered, the result is approximate under load.
+     *
+     * @param percentile Percentile to estimate, between 0 and 100.
+     * @return Upper bound of the bucket containing the percentile, in nanoseconds, or 0 if no
+     * sample was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            samples += counts[i];
+        }
+        if (samples == 0) return 0;
+
+        long rank = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Returns a one-line summary of the histogram, with latencies in microseconds.
+     *
+     * @return A summary with the count, mean, median, 90th, 99th and 99.9th percentiles.
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dus p50<%dus p90<%dus p99<%dus p99.9<%dus", getCount(),
+                getMean() / 1000, getPercentile(50) / 1000, getPercentile(90) / 1000,
+                getPercentile(99) / 1000, getPercentile(99.9) / 1000);
+    }
+}
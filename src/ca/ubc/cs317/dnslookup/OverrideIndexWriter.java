@@ -0,0 +1,225 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/** This class builds the index files used by DNSOverrides, from hosts files, block lists and zone
+ * files. Building the index is done once, ahead of time, so that loading millions of names at
+ * startup only requires mapping the index into memory.
+ * <p>
+ * Hosts files have one address followed by one or more names per line. A line with a name only
+ * (as found in block lists) makes the name nonexistent (NXDOMAIN). A name starting with "*."
+ * matches all names below it (as a DNS wildcard), and a name starting with "." matches the name
+ * itself and all names below it. Zone files may contain A, AAAA, CNAME and PTR records, with "*" as
+ * the first label of wildcard owners; other records are skipped.
+ * <p>
+ * The index contains a header (magic number, version, entry count), the offsets of all entries,
+ * and the entries themselves, sorted by name, match kind and type. Each entry contains the name
+ * (length and lower case ASCII bytes), the match kind, the record type code (0 for NXDOMAIN), the
+ * TTL and the record data (raw address bytes, or a name).
+ */
+public class OverrideIndexWriter {
+
+    static final int MAGIC = 0x444E534F; // "DNSO"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final byte EXACT = 0, WILDCARD = 1, SUFFIX = 2;
+    static final int NXDOMAIN = 0;
+
+    private static final long DEFAULT_TTL = 3600;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /** Adds all entries of a hosts file or block list.
+     *
+     * @param reader Source of the file.
+     * @throws IOException if the file could not be read or has an invalid line.
+     */
+    public void addHosts(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            String[] tokens = WHITESPACE.split((comment < 0 ? line : line.substring(0, comment)).trim());
+            if (tokens[0].isEmpty()) continue;
+
+            if (tokens.length == 1) {
+                addName(tokens[0], NXDOMAIN, DEFAULT_TTL, new byte[0]);
+                continue;
+            }
+            InetAddress address;
+            try {
+                address = parseAddress(tokens[0]);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid address at line " + lineNumber + ": " + tokens[0]);
+            }
+            int type = address.getAddress().length == 4 ? RecordType.A.getCode() : RecordType.AAAA.getCode();
+            for (int i = 1; i < tokens.length; i++)
+                addName(tokens[i], type, DEFAULT_TTL, address.getAddress());
+        }
+    }
+
+    /** Adds the A, AAAA, CNAME and PTR records of a zone file.
+     *
+     * @param reader Source of the zone file.
+     * @param origin Name of the zone.
+     * @throws IOException if the file could not be read or is invalid.
+     */
+    public void addZone(Reader reader, String origin) throws IOException {
+        ZoneFileReader.read(reader, origin, (owner, ttl, type, typeCode, data) -> {
+            switch (type) {
+                case A:
+                case AAAA:
+                    addName(owner, typeCode, ttl, parseAddress(data).getAddress());
+                    break;
+                case CNAME:
+                case PTR:
+                    addName(owner, typeCode, ttl, data.getBytes(StandardCharsets.US_ASCII));
+                    break;
+                default:
+                    break;
+            }
+        });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Writes the index file with all the entries added so far.
+     *
+     * @param output Stream the index is written to.
+     * @throws IOException if the index could not be written.
+     */
+    public void write(OutputStream output) throws IOException {
+        entries.sort(null);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        out.writeInt(0);
+
+        long offset = HEADER_SIZE + 4L * entries.size();
+        for (Entry entry : entries) {
+            if (offset > Integer.MAX_VALUE) throw new IOException("Index is too large");
+            out.writeInt((int) offset);
+            offset += entry.length();
+        }
+        for (Entry entry : entries) {
+            out.writeByte(entry.name.length);
+            out.write(entry.name);
+            out.writeByte(entry.kind);
+            out.writeShort(entry.type);
+            out.writeInt(entry.ttl);
+            out.writeShort(entry.data.length);
+            out.write(entry.data);
+        }
+        out.flush();
+    }
+
+    /** Builds an index file from hosts files and zone files. Each source is either the path of a
+     * hosts file, or "path:origin" for a zone file.
+     *
+     * @param args Path of the index file, followed by the sources.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: OverrideIndexWriter index source...");
+            System.err.println("where each source is a hosts file, or file:origin for a zone file.");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        OverrideIndexWriter writer = new OverrideIndexWriter();
+        for (int i = 1; i < args.length; i++)
+            writer.addSource(args[i]);
+        try (FileOutputStream out = new FileOutputStream(args[0])) {
+            writer.write(out);
+        }
+        System.out.printf("%d entries written to %s in %d ms%n", writer.size(), args[0],
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /** Adds a hosts file, or a zone file given as "path:origin".
+     *
+     * @param source Path of the file, with the origin for a zone file.
+     * @throws IOException if the file could not be read or is invalid.
+     */
+    public void addSource(String source) throws IOException {
+        int colon = source.lastIndexOf(':');
+        try (FileReader reader = new FileReader(colon < 0 ? source : source.substring(0, colon))) {
+            if (colon < 0)
+                addHosts(reader);
+            else
+                addZone(reader, source.substring(colon + 1));
+        }
+    }
+
+    private void addName(String name, int type, long ttl, byte[] data) throws IOException {
+        byte kind = EXACT;
+        name = name.toLowerCase();
+        if (name.startsWith("*.")) {
+            kind = WILDCARD;
+            name = name.substring(2);
+        } else if (name.startsWith(".")) {
+            kind = SUFFIX;
+            name = name.substring(1);
+        }
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > 255) throw new IOException("Name too long: " + name);
+        entries.add(new Entry(bytes, kind, type, (int) Math.min(Integer.MAX_VALUE, ttl), data));
+    }
+
+    // @return the address in textual form, without any name lookup
+    private static InetAddress parseAddress(String text) {
+        InetAddress address = ReverseLookup.parseAddress(text);
+        if (address == null)
+            throw new IllegalArgumentException("Not an address: " + text);
+        return address;
+    }
+
+    /** Compares two names stored as lower case ASCII bytes, as unsigned bytes.
+     *
+     * @return A negative number, zero or a positive number if the first name sorts before, the
+     * same as, or after the second name.
+     */
+    static int compareNames(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        return Arrays.compareUnsigned(a, aOffset, aOffset + aLength, b, bOffset, bOffset + bLength);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final byte[] name;
+        private final byte kind;
+        private final int type;
+        private final int ttl;
+        private final byte[] data;
+
+        private Entry(byte[] name, byte kind, int type, int ttl, byte[] data) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+        }
+
+        private int length() {
+            return 1 + name.length + 1 + 2 + 4 + 2 + data.length;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = compareNames(name, 0, name.length, other.name, 0, other.name.length);
+            if (result == 0) result = Byte.compare(kind, other.kind);
+            if (result == 0) result = Integer.compare(type, other.type);
+            return result;
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime.getTime() > System.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -73,6 +73,45 @@ public class ResourceRecord implements Serializable {
         return this.expirationTime.before(record.expirationTime);
     }
 
+    /** Returns a record with the same content as this one, but that expires no later than
+     * another record. This is used to report a CNAME chain, which is only valid for as long as
+     * every record along the chain is valid.
+     *
+     * @param record Another resource record whose expiration limits the returned record.
+     * @return This record if it already expires first, or a copy expiring with the parameter record.
+     */
+    public ResourceRecord expiringNoLaterThan(ResourceRecord record) {
+        if (!record.expiresBefore(this))
+            return this;
+        ResourceRecord limited = new ResourceRecord(getHostName(), getType(), 0, textResult);
+        limited.expirationTime = record.expirationTime;
+        limited.inetResult = inetResult;
+        return limited;
+    }
+
+    /** Returns a record with the same content as this one, but that expires at a given time. This
+     * is used for records received from other resolvers, which are sent with their absolute
+     * expiration time so their TTL does not restart.
+     *
+     * @param expirationTime Time at which the returned record expires, in milliseconds since the
+     *                       epoch.
+     * @return A copy of this record expiring at the given time.
+     */
+    public ResourceRecord expiringAt(long expirationTime) {
+        ResourceRecord copy = new ResourceRecord(getHostName(), getType(), 0, textResult);
+        copy.expirationTime = new Date(expirationTime);
+        copy.inetResult = inetResult;
+        return copy;
+    }
+
+    /** Returns the time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime.getTime();
+    }
+
     public String getTextResult() {
         return textResult;
     }
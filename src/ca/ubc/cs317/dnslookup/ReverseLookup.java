@@ -0,0 +1,204 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class finds the names of many IP addresses at once (reverse lookups, using PTR records
+ * under in-addr.arpa and ip6.arpa), e.g., to enrich logs. Addresses are grouped by network (/24
+ * for IPv4, /48 for IPv6), which is where reverse zones are usually delegated. The first address
+ * of each network is resolved alone, which caches the delegation of its reverse zone, and the
+ * others are then resolved concurrently, starting at that delegation: addresses of the same
+ * network share a single delegation walk. Reverse lookups are sent as batch lookups, so they do
+ * not slow down interactive ones.
+ */
+public class ReverseLookup {
+
+    private static final int IPV4_GROUP_BYTES = 3;  // /24
+    private static final int IPV6_GROUP_BYTES = 6;  // /48
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Builds the name used to find the PTR records of an address, e.g. "1.2.0.192.in-addr.arpa"
+     * for 192.0.2.1, or the 32 nibbles of an IPv6 address followed by "ip6.arpa".
+     *
+     * @param address The IPv4 or IPv6 address.
+     * @return The reverse name of the address.
+     */
+    public static String reverseName(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        StringBuilder name = new StringBuilder(bytes.length == 4 ? 29 : 73);
+        if (address instanceof Inet4Address) {
+            for (int i = bytes.length - 1; i >= 0; i--)
+                name.append(bytes[i] & 0xFF).append('.');
+            return name.append("in-addr.arpa").toString();
+        }
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            name.append(HEX_DIGITS[bytes[i] & 0x0F]).append('.');
+            name.append(HEX_DIGITS[(bytes[i] >> 4) & 0x0F]).append('.');
+        }
+        return name.append("ip6.arpa").toString();
+    }
+
+    /** Parses an IPv4 or IPv6 address in textual form, without any name lookup. Both forms are
+     * parsed here rather than by InetAddress.getByName, which looks up any text it does not
+     * recognize as an address.
+     *
+     * @param text The address, e.g. "192.0.2.1" or "2001:db8::1".
+     * @return The address, or null if the text is not an address.
+     */
+    public static InetAddress parseAddress(String text) {
+        try {
+            if (text.indexOf(':') >= 0) {
+                byte[] bytes = parseIPv6(text);
+                // Kept as an IPv6 address, even if it is an IPv4-mapped one
+                return bytes == null ? null : Inet6Address.getByAddress(null, bytes, -1);
+            }
+            byte[] bytes = parseIPv4(text);
+            return bytes == null ? null : InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // @return the 4 bytes of an IPv4 address in dotted decimal form, or null if it is invalid
+    private static byte[] parseIPv4(String text) {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4)
+            return null;
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].isEmpty() || parts[i].length() > 3) return null;
+            int value = 0;
+            for (char c : parts[i].toCharArray()) {
+                if (c < '0' || c > '9') return null;
+                value = value * 10 + (c - '0');
+            }
+            if (value > 255) return null;
+            bytes[i] = (byte) value;
+        }
+        return bytes;
+    }
+
+    // @return the 16 bytes of an IPv6 address (with at most one "::", and possibly an IPv4
+    // address as its last 32 bits), or null if it is invalid
+    private static byte[] parseIPv6(String text) {
+        int gap = text.indexOf("::");
+        if (gap >= 0 && text.indexOf("::", gap + 1) >= 0)
+            return null;
+        int[] head = parseGroups(gap < 0 ? text : text.substring(0, gap), gap < 0);
+        int[] tail = gap < 0 ? new int[0] : parseGroups(text.substring(gap + 2), true);
+        if (head == null || tail == null || (gap < 0 ? head.length != 8 : head.length + tail.length > 7))
+            return null;
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < head.length; i++) {
+            bytes[2 * i] = (byte) (head[i] >> 8);
+            bytes[2 * i + 1] = (byte) head[i];
+        }
+        for (int i = 0, start = 8 - tail.length; i < tail.length; i++) {
+            bytes[2 * (start + i)] = (byte) (tail[i] >> 8);
+            bytes[2 * (start + i) + 1] = (byte) tail[i];
+        }
+        return bytes;
+    }
+
+    // @return the 16-bit groups of part of an IPv6 address, or null if it is invalid. If the
+    // part ends the address, its last group may be an IPv4 address, which counts as two groups.
+    private static int[] parseGroups(String text, boolean last) {
+        if (text.isEmpty())
+            return new int[0];
+        String[] parts = text.split(":", -1);
+        int[] groups = new int[parts.length + 1];
+        int count = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (last && i == parts.length - 1 && parts[i].indexOf('.') >= 0) {
+                byte[] ipv4 = parseIPv4(parts[i]);
+                if (ipv4 == null) return null;
+                groups[count++] = (ipv4[0] & 0xFF) << 8 | ipv4[1] & 0xFF;
+                groups[count++] = (ipv4[2] & 0xFF) << 8 | ipv4[3] & 0xFF;
+                continue;
+            }
+            if (parts[i].isEmpty() || parts[i].length() > 4) return null;
+            int value = 0;
+            for (char c : parts[i].toCharArray()) {
+                int digit = c >= '0' && c <= '9' ? c - '0' :
+                        c >= 'a' && c <= 'f' ? c - 'a' + 10 :
+                        c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+                if (digit < 0) return null;
+                value = value * 16 + digit;
+            }
+            groups[count++] = value;
+        }
+        return Arrays.copyOf(groups, count);
+    }
+
+    /** Finds the names of a set of addresses.
+     *
+     * @param addresses   Addresses to be resolved.
+     * @param parallelism Maximum number of lookups running at the same time.
+     * @param budget      Time allowed for each lookup, in milliseconds.
+     * @return The names found for each address (in the order given), with an empty list for
+     * addresses without a name.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public static Map<InetAddress, List<String>> resolveAll(Collection<InetAddress> addresses, int parallelism,
+                                                           long budget) throws InterruptedException {
+        Map<InetAddress, List<String>> names = new ConcurrentHashMap<>();
+        Map<String, List<InetAddress>> networks = new LinkedHashMap<>();
+        for (InetAddress address : new LinkedHashSet<>(addresses))
+            networks.computeIfAbsent(network(address), n -> new ArrayList<>()).add(address);
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, parallelism), runnable -> {
+            Thread thread = new Thread(runnable, "reverse-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int count = 0;
+        for (List<InetAddress> network : networks.values())
+            count += network.size();
+        CountDownLatch done = new CountDownLatch(count);
+        try {
+            for (List<InetAddress> network : networks.values()) {
+                workers.execute(() -> {
+                    // The first lookup caches the delegation used by all the others
+                    resolve(network.get(0), budget, names, done);
+                    for (InetAddress address : network.subList(1, network.size()))
+                        workers.execute(() -> resolve(address, budget, names, done));
+                });
+            }
+            done.await();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        Map<InetAddress, List<String>> ordered = new LinkedHashMap<>();
+        for (InetAddress address : addresses)
+            ordered.put(address, names.getOrDefault(address, Collections.emptyList()));
+        return ordered;
+    }
+
+    // Resolves the PTR records of a single address
+    private static void resolve(InetAddress address, long budget, Map<InetAddress, List<String>> names,
+                                CountDownLatch done) {
+        try {
+            List<String> found = new ArrayList<>();
+            DNSNode node = new DNSNode(reverseName(address), RecordType.PTR);
+            for (ResourceRecord record : DNSLookupService.getResults(node, DNSResolution.Priority.BATCH, budget))
+                if (record.getType() == RecordType.PTR)
+                    found.add(record.getTextResult());
+            names.put(address, found);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    // @return the network an address belongs to, as the reverse zone is usually delegated
+    private static String network(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int length = bytes.length == 4 ? IPV4_GROUP_BYTES : IPV6_GROUP_BYTES;
+        return Arrays.toString(Arrays.copyOf(bytes, length));
+    }
+}
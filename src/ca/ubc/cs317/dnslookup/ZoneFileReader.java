@@ -0,0 +1,203 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/** This class reads DNS zones in the master file format (RFC 1035, section 5). The file is
+ * streamed, and each record is passed to a handler as soon as it is read, so large zones can be
+ * loaded into any structure without an intermediate list of records. The $ORIGIN and $TTL
+ * directives, relative names, "@", omitted owners and TTLs, and parentheses spanning several
+ * lines are supported. Names are returned in lower case, without the trailing dot (the root is
+ * the empty string), as used in the rest of the application. Records of a type this reader does
+ * not know by name (neither a supported type, a common one listed here, nor "TYPEnnn") are
+ * skipped, as their type code cannot be known.
+ */
+public class ZoneFileReader {
+
+    private static final Map<String, Integer> OTHER_TYPE_CODES = new HashMap<>();
+
+    static {
+        OTHER_TYPE_CODES.put("HINFO", 13);
+        OTHER_TYPE_CODES.put("TXT", 16);
+        OTHER_TYPE_CODES.put("SRV", 33);
+        OTHER_TYPE_CODES.put("NAPTR", 35);
+        OTHER_TYPE_CODES.put("DS", 43);
+        OTHER_TYPE_CODES.put("SSHFP", 44);
+        OTHER_TYPE_CODES.put("RRSIG", 46);
+        OTHER_TYPE_CODES.put("NSEC", 47);
+        OTHER_TYPE_CODES.put("DNSKEY", 48);
+        OTHER_TYPE_CODES.put("NSEC3", 50);
+        OTHER_TYPE_CODES.put("NSEC3PARAM", 51);
+        OTHER_TYPE_CODES.put("TLSA", 52);
+        OTHER_TYPE_CODES.put("CDS", 59);
+        OTHER_TYPE_CODES.put("CDNSKEY", 60);
+        OTHER_TYPE_CODES.put("ZONEMD", 63);
+        OTHER_TYPE_CODES.put("SVCB", 64);
+        OTHER_TYPE_CODES.put("HTTPS", 65);
+        OTHER_TYPE_CODES.put("CAA", 257);
+    }
+
+    /** Action performed for each record read from a zone file. */
+    public interface RecordHandler {
+        /**
+         * @param owner    Owner name of the record.
+         * @param ttl      TTL of the record, in seconds.
+         * @param type     Type of the record, or OTHER for types not supported by the application.
+         * @param typeCode Numeric type of the record.
+         * @param data     Record data. Names (NS, CNAME, ...) are absolute and addresses are in
+         *                 their textual form; other data is returned as found in the file.
+         */
+        void handle(String owner, long ttl, RecordType type, int typeCode, String data) throws IOException;
+    }
+
+    /** Reads all records of a zone file.
+     *
+     * @param reader  Source of the zone file.
+     * @param origin  Initial origin, used for relative names until a $ORIGIN directive is found.
+     * @param handler Action performed for each record.
+     * @throws IOException if the zone file could not be read or has an invalid line.
+     */
+    public static void read(Reader reader, String origin, RecordHandler handler) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        origin = normalize(origin);
+        String owner = origin;
+        long defaultTtl = 3600;
+        int lineNumber = 0;
+
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            String entry = stripComment(line);
+            // Join lines within parentheses
+            while (count(entry, '(') > count(entry, ')')) {
+                String next = lines.readLine();
+                if (next == null) throw new IOException("Unbalanced parentheses at line " + lineNumber);
+                lineNumber++;
+                entry += " " + stripComment(next);
+            }
+            if (entry.trim().isEmpty()) continue;
+
+            boolean ownerOmitted = Character.isWhitespace(entry.charAt(0));
+            List<String> tokens = new ArrayList<>(Arrays.asList(
+                    entry.replace('(', ' ').replace(')', ' ').trim().split("\\s+")));
+
+            try {
+                if (tokens.get(0).equalsIgnoreCase("$ORIGIN")) {
+                    origin = absolute(tokens.get(1), origin);
+                    continue;
+                } else if (tokens.get(0).equalsIgnoreCase("$TTL")) {
+                    defaultTtl = parseTtl(tokens.get(1));
+                    continue;
+                } else if (tokens.get(0).startsWith("$")) {
+                    throw new IOException("Unsupported directive " + tokens.get(0));
+                }
+
+                if (!ownerOmitted)
+                    owner = absolute(tokens.remove(0), origin);
+
+                long ttl = defaultTtl;
+                // TTL and class may appear in either order before the type
+                for (int i = 0; i < 2; i++) {
+                    String token = tokens.get(0);
+                    if (Character.isDigit(token.charAt(0))) {
+                        ttl = parseTtl(tokens.remove(0));
+                    } else if (token.equalsIgnoreCase("IN") || token.equalsIgnoreCase("CH") ||
+                            token.equalsIgnoreCase("HS") || token.equalsIgnoreCase("CS")) {
+                        tokens.remove(0);
+                    }
+                }
+
+                String typeName = tokens.remove(0).toUpperCase();
+                RecordType type = RecordType.OTHER;
+                int typeCode;
+                if (typeName.startsWith("TYPE")) {
+                    typeCode = Integer.parseInt(typeName.substring(4));
+                    type = RecordType.getByCode(typeCode);
+                } else if (OTHER_TYPE_CODES.containsKey(typeName)) {
+                    typeCode = OTHER_TYPE_CODES.get(typeName);
+                    type = RecordType.getByCode(typeCode);
+                } else if (isSupportedType(typeName)) {
+                    type = RecordType.valueOf(typeName);
+                    typeCode = type.getCode();
+                } else if (typeName.matches("[A-Z][A-Z0-9]*")) {
+                    continue; // a type unknown to this reader: skipped
+                } else {
+                    throw new IllegalArgumentException("Invalid type " + typeName);
+                }
+
+                String data;
+                if (type == RecordType.NS || type == RecordType.CNAME || type == RecordType.PTR)
+                    data = absolute(tokens.get(0), origin);
+                else
+                    data = String.join(" ", tokens);
+
+                handler.handle(owner, ttl, type, typeCode, data);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Invalid record at line " + lineNumber + ": " + line.trim());
+            }
+        }
+    }
+
+    /** Converts a TTL to seconds. Both plain numbers and BIND-style units (e.g. "1h30m") are
+     * accepted.
+     *
+     * @param ttl TTL as found in a zone file.
+     * @return The TTL in seconds.
+     */
+    public static long parseTtl(String ttl) {
+        long total = 0, value = 0;
+        boolean hasUnit = false;
+        for (char c : ttl.toLowerCase().toCharArray()) {
+            if (Character.isDigit(c)) {
+                value = value * 10 + (c - '0');
+                continue;
+            }
+            hasUnit = true;
+            switch (c) {
+                case 's': total += value; break;
+                case 'm': total += value * 60; break;
+                case 'h': total += value * 3600; break;
+                case 'd': total += value * 86400; break;
+                case 'w': total += value * 604800; break;
+                default: throw new IllegalArgumentException("Invalid TTL " + ttl);
+            }
+            value = 0;
+        }
+        return hasUnit ? total + value : value;
+    }
+
+    // @return true if name is the mnemonic of a type supported by the application
+    private static boolean isSupportedType(String name) {
+        for (RecordType type : RecordType.values())
+            if (type != RecordType.OTHER && type.name().equals(name)) return true;
+        return false;
+    }
+
+    // @return name relative to origin if it does not end with a dot, in lower case and without
+    // the trailing dot
+    private static String absolute(String name, String origin) {
+        if (name.equals("@")) return origin;
+        if (name.endsWith(".")) return normalize(name);
+        name = name.toLowerCase();
+        return origin.isEmpty() ? name : name + "." + origin;
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String stripComment(String line) {
+        int comment = line.indexOf(';');
+        return comment < 0 ? line : line.substring(0, comment);
+    }
+
+    private static int count(String text, char c) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == c) count++;
+        return count;
+    }
+}